@@ -2,6 +2,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +28,17 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final PageLsnMap pageLsns;
+
+	// merges and redistributions involving internal pages that are running, and a
+	// counter bumped when one starts and when one ends; see findLeafPage
+	private final AtomicInteger structureChanges = new AtomicInteger(0);
+	private final AtomicLong structureVersion = new AtomicLong(0);
+	// structure changes that failed half-way, per transaction; they stay running
+	// until the transaction completes and its pages are restored
+	private final ConcurrentMap<TransactionId, Integer> unfinishedChanges = new ConcurrentHashMap<TransactionId, Integer>();
+	// optimistic descents that were repeated pessimistically
+	private final AtomicLong descentRestarts = new AtomicLong(0);
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,6 +53,10 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		// the file may have been replaced since a channel was last opened on it
+		Database.getCatalog().getFileHandles().invalidate(f);
+		Database.getCatalog().getFileHandles().invalidate(PageLsnMap.sideFile(f));
+		pageLsns = new PageLsnMap(f);
 	}
 
 	/**
@@ -78,39 +97,27 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
+		FileHandleCache files = Database.getCatalog().getFileHandles();
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
+				if (f.length() < BTreeRootPtrPage.getPageSize()) {
 					throw new IllegalArgumentException("Unable to read "
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
+				files.readFully(f, pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				long offset = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber()-1) * BufferPool.getPageSize();
+				if (offset + BufferPool.getPageSize() > f.length()) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				files.readFully(f, pageBuf, offset);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,14 +134,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,16 +147,21 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		FileHandleCache files = Database.getCatalog().getFileHandles();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			files.write(f, data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			files.write(f, data, BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
 		}
+		pageLsns.pageWritten(id.getPageNumber(), page.getLSN());
+	}
+
+	/**
+	 * @return the map of the LSNs of the pages of this file on disk
+	 */
+	public PageLsnMap getPageLsnMap() {
+		return pageLsns;
 	}
 	
 	/**
@@ -195,25 +199,217 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, findChild(page, f), perm, f);
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page possibly
+	 * containing the key field f, starting from the root. The descent is optimistic: the root
+	 * pointer page and the internal pages are not locked, but read under their shared latches,
+	 * the latch of a page being released once the latch of its child is held. Only the leaf
+	 * page is locked, with permission perm, after the last latch is released.
+	 * 
+	 * A split that is still running, or that happened while the descent was waiting for the
+	 * lock on the leaf, is passed by moving right along the pages of a level while f is greater
+	 * than their high key, see {@link BTreePage#getHighKey()}. Merges and redistributions
+	 * move keys to the left, so they are counted instead, see {@link #beginStructureChange()}.
+	 * If one was running or ran during the descent, the leaf may not be the right one anymore,
+	 * and the descent is repeated pessimistically,
+	 * locking all pages on the path like
+	 * {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)}. Snapshot
+	 * transactions always descend that way, since they read page images without locks.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		if(!Database.getBufferPool().isSnapshot(tid)) {
+			long version = structureVersion.get();
+			if(structureChanges.get() == 0) {
+				BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, perm, f, version);
+				if(leaf != null) {
+					return leaf;
+				}
+			}
+			descentRestarts.incrementAndGet();
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, 
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreeLeafPage leaf = moveRight(tid, dirtypages, findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f), perm, f);
+		return (BTreeLeafPage) getPage(tid, dirtypages, leaf.getId(), perm);
+	}
+
+	// the optimistic descent of findLeafPage; null if the structure changed since version
+	// or the tree looked inconsistent on the way
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			Permissions perm, Field f, long version) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		Page page = bp.getLatchedPage(BTreeRootPtrPage.getId(tableid), false);
+		BTreePageId child = ((BTreeRootPtrPage) page).getRootId();
+		try {
+			while(child != null && child.pgcateg() == BTreePageId.INTERNAL) {
+				Page next = bp.getLatchedPage(child, false);
+				page.getLatch().releaseShared();
+				page = next;
+				// pass splits the parent doesn't know about yet
+				BTreePageId right;
+				while((right = rightOf((BTreeInternalPage) page, f)) != null) {
+					next = bp.getLatchedPage(right, false);
+					page.getLatch().releaseShared();
+					page = next;
+				}
+				child = findChild((BTreeInternalPage) page, f);
+			}
+		} catch (DbException e) {
+			// an internal page was emptied by a change that started after the
+			// version was read
+			child = null;
+		} finally {
+			page.getLatch().releaseShared();
+		}
+		if(child == null || structureVersion.get() != version) {
+			return null;
+		}
+
+		// locking may block, so no latch is held here. A leaf found through a parent read
+		// before a merge may have been freed and reused since, so it is only marked dirty
+		// once the descent turned out to be valid, see lockPage
+		BTreeLeafPage leaf = moveRight(tid, dirtypages, (BTreeLeafPage) lockPage(tid, dirtypages, child, perm), perm, f);
+		if(structureVersion.get() != version) {
+			return null;
+		}
+		return (BTreeLeafPage) getPage(tid, dirtypages, leaf.getId(), perm);
+	}
+
+	// the right sibling a search for f has to move on to from the given page, or null
+	private static BTreePageId rightOf(BTreeInternalPage page, Field f) {
+		if(f == null || page.getHighKey() == null || !f.compare(Op.GREATER_THAN, page.getHighKey())) {
+			return null;
+		}
+		return page.getRightSiblingId();
+	}
+
+	// lock the leaf pages to the right of leaf while f is greater than their high key,
+	// and return the last one. The pages passed are not marked dirty
+	private BTreeLeafPage moveRight(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf,
+			Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		while(f != null && leaf.getHighKey() != null && f.compare(Op.GREATER_THAN, leaf.getHighKey())
+				&& leaf.getRightSiblingId() != null) {
+			leaf = (BTreeLeafPage) lockPage(tid, dirtypages, leaf.getRightSiblingId(), perm);
+		}
+		return leaf;
+	}
+
+	// like getPage, but without adding the page to dirtypages, whose pages are marked dirty
+	// once the operation is done. A page marked dirty is written back when tid commits, even
+	// if tid never changed it
+	private Page lockPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		return Database.getBufferPool().getPage(tid, pid, perm);
+	}
+
+	private BTreePageId findChild(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId() + " has no entries");
+		}
+		return e.getRightChild();
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+
+	/**
+	 * @return the number of optimistic descents that overlapped a change to the structure of
+	 * the tree and were repeated pessimistically, see findLeafPage
+	 */
+	long getDescentRestarts() {
+		return descentRestarts.get();
+	}
+
+	/**
+	 * Mark the start of a change to the structure of the tree, i.e. to internal pages or
+	 * the root pointer, which optimistic descents must not overlap with. Splits don't count,
+	 * since descents move right past them. Every call is followed by
+	 * {@link #endStructureChange(TransactionId, boolean)}.
+	 */
+	void beginStructureChange() {
+		structureChanges.incrementAndGet();
+		structureVersion.incrementAndGet();
+	}
+
+	/**
+	 * Mark the end of a change to the structure of the tree. A change that failed half-way
+	 * may have left the structure inconsistent until its transaction is rolled back, so it
+	 * keeps running until {@link #endUnfinishedChanges(TransactionId)}.
+	 * 
+	 * @param tid - the transaction that made the change
+	 * @param done - whether the change was completed
+	 */
+	void endStructureChange(TransactionId tid, boolean done) {
+		if(!done) {
+			unfinishedChanges.merge(tid, 1, Integer::sum);
+			return;
+		}
+		structureVersion.incrementAndGet();
+		structureChanges.decrementAndGet();
+	}
+
+	/**
+	 * End the structure changes of a transaction that failed half-way, once the
+	 * transaction completed.
+	 */
+	void endUnfinishedChanges(TransactionId tid) {
+		Integer n = unfinishedChanges.remove(tid);
+		for(int i = 0; n != null && i < n; i++) {
+			endStructureChange(tid, true);
+		}
+	}
+
+	// latch pages exclusive for a physical change, in the order given: parents
+	// before children, the order descents latch them in
+	private static void latch(Page... pages) {
+		for(Page p : pages) {
+			p.getLatch().acquireExclusive();
+		}
+	}
+
+	private static void unlatch(Page... pages) {
+		for(int i = pages.length - 1; i >= 0; i--) {
+			pages[i].getLatch().releaseExclusive();
+		}
 	}
 
 	/**
@@ -240,15 +436,45 @@ public class BTreeFile implements DbFile {
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page on the right
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = page.getNumTuples() / 2; i > 0 && it.hasNext(); i--) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page into the leaf chain
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent; until it gets there,
+		// searches for greater keys find the new page through the high key of the page
+		Field key = newPage.iterator().next().getField(keyField);
+		newPage.setHighKey(page.getHighKey());
+		page.setHighKey(key);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		latch(parent);
+		try {
+			parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		} finally {
+			unlatch(parent);
+		}
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, key) ? newPage : page;
 	}
 	
 	/**
@@ -277,15 +503,51 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page on the right, and take
+		// the last entry left out of the page to push it up
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = page.getNumEntries() / 2; i > 0 && it.hasNext(); i--) {
+			moving.add(0, it.next());
+		}
+		BTreeEntry middle;
+		latch(page, newPage);
+		try {
+			for(int i = moving.size() - 1; i >= 0; i--) {
+				page.deleteKeyAndRightChild(moving.get(i));
+			}
+			for(BTreeEntry e : moving) {
+				newPage.insertEntry(e);
+			}
+			middle = page.reverseIterator().next();
+			page.deleteKeyAndRightChild(middle);
+
+			// link the new page in before anybody can see the page without its entries
+			newPage.setHighKey(page.getHighKey());
+			newPage.setRightSiblingId(page.getRightSiblingId());
+			page.setHighKey(middle.getKey());
+			page.setRightSiblingId(newPage.getId());
+		} finally {
+			unlatch(page, newPage);
+		}
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		latch(parent);
+		try {
+			parent.insertEntry(middle);
+		} finally {
+			unlatch(parent);
+		}
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -319,7 +581,7 @@ public class BTreeFile implements DbFile {
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
 					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
-			rootPtr.setRootId(parent.getId());
+			setRootId(rootPtr, parent.getId());
 
 			// update the previous root to now point to this new root.
 			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
@@ -341,7 +603,8 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Helper function to update the parent pointer of a node.
+	 * Helper function to update the parent pointer of a node. The pointer is checked under
+	 * the latch of the node, without locking it, and the node is only locked if it changes.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -354,10 +617,21 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		BTreePageId parentId;
+		if(dirtypages.containsKey(child)) {
+			parentId = ((BTreePage) dirtypages.get(child)).getParentId();
+		}
+		else {
+			Page p = Database.getBufferPool().getLatchedPage(child, false);
+			try {
+				parentId = ((BTreePage) p).getParentId();
+			} finally {
+				p.getLatch().releaseShared();
+			}
+		}
 
-		if(!p.getParentId().equals(pid)) {
-			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+		if(!parentId.equals(pid)) {
+			BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
 			p.setParentId(pid);
 		}
 
@@ -394,7 +668,9 @@ public class BTreeFile implements DbFile {
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
 	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since 
-	 * presumably they will soon be dirtied by this transaction.
+	 * presumably they will soon be dirtied by this transaction. They are marked dirty once the operation
+	 * is done, see {@link #installDirtyPages}; until then the buffer pool may evict them, and the
+	 * dirtypages cache keeps the changes.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
@@ -423,6 +699,37 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Mark the pages of a finished operation dirty and put the ones the buffer pool evicted
+	 * during the operation back, before other transactions can descend through them.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages of the operation
+	 * @throws DbException if the buffer pool has no room for the dirty pages
+	 */
+	private static void installDirtyPages(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+			bp.putPage(p.getId(), p);
+		}
+	}
+
+	/**
+	 * Mark the pages of an operation that failed half-way dirty, so that they are rolled back
+	 * when tid aborts. Pages the buffer pool evicted meanwhile are left out, their changes
+	 * never reach the pool.
+	 */
+	private static void markFailedPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		BufferPool bp = Database.getBufferPool();
+		for(Page p : dirtypages.values()) {
+			if(bp.peekPage(p.getId()) == p) {
+				p.markDirty(true, tid);
+			}
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -436,32 +743,61 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean done = false;
+		try {
+			// read the root pointer page under its latch and use it to locate the root page
+			BTreePageId rootId = getRootId(tid, dirtypages);
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootId = rootPtr.getRootId();
+				if(rootId == null) {
+					rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					setRootId(rootPtr, rootId);
+				}
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+			installDirtyPages(tid, dirtypages);
+			done = true;
+		} finally {
+			if(!done) {
+				markFailedPages(tid, dirtypages);
+			}
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Insert a batch of tuples into this BTreeFile, one after the other.
+	 * A page dirtied by several of the insertions is returned once.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert
+	 * @return a list of all pages that were dirtied by these operations
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		LinkedHashMap<PageId, Page> dirtypages = new LinkedHashMap<PageId, Page>();
+		while(tuples.hasNext()) {
+			for(Page p : insertTuple(tid, tuples.next()))
+				dirtypages.put(p.getId(), p);
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -577,10 +913,27 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
 		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = (sibling.getNumTuples() - page.getNumTuples()) / 2; i > 0 && it.hasNext(); i--) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key of the entry is the first key of the right-hand page, and the high key
+		// of the left-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		(isRightSibling ? page : sibling).setHighKey(entry.getKey());
+		latch(parent);
+		try {
+			parent.updateEntry(entry);
+		} finally {
+			unlatch(parent);
+		}
 	}
 
 	/**
@@ -657,10 +1010,23 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		latch(parent, leftSibling, page);
+		try {
+			for(int i = 0; i < numMove; i++) {
+				// pull the key of the parent entry down, push the last key of the sibling up
+				BTreeEntry last = leftSibling.reverseIterator().next();
+				BTreeEntry first = page.iterator().next();
+				page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+				leftSibling.deleteKeyAndRightChild(last);
+				parentEntry.setKey(last.getKey());
+			}
+			leftSibling.setHighKey(parentEntry.getKey());
+			parent.updateEntry(parentEntry);
+		} finally {
+			unlatch(parent, leftSibling, page);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -685,10 +1051,23 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		latch(parent, page, rightSibling);
+		try {
+			for(int i = 0; i < numMove; i++) {
+				// pull the key of the parent entry down, push the first key of the sibling up
+				BTreeEntry first = rightSibling.iterator().next();
+				BTreeEntry last = page.reverseIterator().next();
+				page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+				rightSibling.deleteKeyAndLeftChild(first);
+				parentEntry.setKey(first.getKey());
+			}
+			page.setHighKey(parentEntry.getKey());
+			parent.updateEntry(parentEntry);
+		} finally {
+			unlatch(parent, page, rightSibling);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -714,11 +1093,27 @@ public class BTreeFile implements DbFile {
 					throws DbException, IOException, TransactionAbortedException {
 
 		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page from the leaf chain
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
+		leftPage.setHighKey(rightPage.getHighKey());
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -746,12 +1141,29 @@ public class BTreeFile implements DbFile {
 					throws DbException, IOException, TransactionAbortedException {
 		
 		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		latch(leftPage, rightPage);
+		try {
+			// pull the key of the parent entry down between the two halves
+			BTreeEntry last = leftPage.reverseIterator().next();
+			leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), moving.get(0).getLeftChild()));
+			for(BTreeEntry e : moving) {
+				rightPage.deleteKeyAndLeftChild(e);
+				leftPage.insertEntry(e);
+			}
+			leftPage.setHighKey(rightPage.getHighKey());
+			leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+		} finally {
+			unlatch(leftPage, rightPage);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -779,7 +1191,12 @@ public class BTreeFile implements DbFile {
 		// delete the entry in the parent.  If
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
-		parent.deleteKeyAndRightChild(parentEntry);
+		latch(parent);
+		try {
+			parent.deleteKeyAndRightChild(parentEntry);
+		} finally {
+			unlatch(parent);
+		}
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
@@ -791,7 +1208,7 @@ public class BTreeFile implements DbFile {
 			}
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			leftPage.setParentId(rootPtrId);
-			rootPtr.setRootId(leftPage.getId());
+			setRootId(rootPtr, leftPage.getId());
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
@@ -824,8 +1241,25 @@ public class BTreeFile implements DbFile {
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		boolean structureChange = page.getNumEmptySlots() > maxEmptySlots;
+		if(structureChange) {
+			beginStructureChange();
+		}
+		boolean done = false;
+		try {
+			if(structureChange) {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+			// the changed pages are back in the pool before descents may pass them
+			installDirtyPages(tid, dirtypages);
+			done = true;
+		} finally {
+			if(!done) {
+				markFailedPages(tid, dirtypages);
+			}
+			if(structureChange) {
+				endStructureChange(tid, done);
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -845,6 +1279,55 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createRootPtrPage();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Read the id of the root page without locking the root pointer page: it is read under
+	 * its shared latch, unless this operation locked it READ_WRITE or tid reads through a
+	 * snapshot. Create the root pointer page and root page if necessary.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages of this operation
+	 * @return the id of the root page
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	BTreePageId getRootId(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, TransactionAbortedException {
+		try {
+			createRootPtrPage();
+		} catch (IOException e) {
+			throw new DbException("can't create the root pointer page: " + e);
+		}
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BufferPool bp = Database.getBufferPool();
+		if(dirtypages.containsKey(rootPtrId) || bp.isSnapshot(tid)) {
+			return ((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		}
+		Page p = bp.getLatchedPage(rootPtrId, false);
+		try {
+			return ((BTreeRootPtrPage) p).getRootId();
+		} finally {
+			p.getLatch().releaseShared();
+		}
+	}
+
+	// point the root pointer page, locked READ_WRITE, to a new root; readers
+	// only hold its latch
+	private void setRootId(BTreeRootPtrPage rootPtr, BTreePageId rootId) throws DbException {
+		latch(rootPtr);
+		try {
+			rootPtr.setRootId(rootId);
+		} finally {
+			unlatch(rootPtr);
+		}
+	}
+
+	// create the root pointer page and the root page of an empty file
+	private void createRootPtrPage() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -857,9 +1340,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -945,10 +1425,8 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		Database.getCatalog().getFileHandles().write(f, BTreePage.createEmptyPageData(),
+				BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo-1) * BufferPool.getPageSize());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1066,7 +1544,19 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for all the tuples in this file
 	 */
 	public DbFileIterator iterator(TransactionId tid) {
-		return new BTreeFileIterator(this, tid);
+		return new BTreeFileIterator(this, tid, null);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order that
+	 * reads the leaf pages missing from the buffer pool through the given ring.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ring - the buffer ring for the leaf pages, may be null
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+		return new BTreeFileIterator(this, tid, ring);
 	}
 
 }
@@ -1081,25 +1571,27 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
+	BufferRing ring;
+	// number of leaves read by following right-sibling pointers
+	int leavesRead = 0;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
+	 * @param ring - the buffer ring for the leaf pages, may be null
 	 */
-	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, BufferRing ring) {
 		this.f = f;
 		this.tid = tid;
+		this.ring = ring;
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1121,7 +1613,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
+				// the leaf chain is read sequentially, prefetch the next leaves
+				// unless the scan stays out of the pool
+				leavesRead++;
+				if (ring == null && leavesRead >= PagePrefetcher.SEQUENTIAL_THRESHOLD)
+					Database.getBufferPool().getPrefetcher().prefetchLeafChain(curp.getRightSiblingId());
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1148,6 +1645,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		leavesRead = 0;
 	}
 }
 
@@ -1181,15 +1679,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
 		it = curp.iterator();
 	}
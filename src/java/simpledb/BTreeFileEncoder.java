@@ -217,6 +217,133 @@ public class BTreeFileEncoder {
 
 		// add the tuples to B+ tree file
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		bulkLoad(tuples.iterator(), bf, npagebytes, numFields, typeAr, keyField);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Encode a B+ tree file from a raw data file that is already sorted on
+	 * the key field. Unlike {@link #convert(File, File, File, int, int, Type[], char, int)},
+	 * the tuples are not collected and sorted in memory first: they are
+	 * streamed from the input straight into the leaf pages, so the input
+	 * may be much larger than memory. The B+ tree file is added to the
+	 * catalog.
+	 * 
+	 * @param inFile - the file containing the raw data, sorted on keyField
+	 * @param bFile - the data file for the BTreeFile, overwritten if it exists
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @return the B+ tree file
+	 * @throws IOException if the input can't be read or a malformed line is encountered
+	 * @throws DbException if the input is not sorted on keyField
+	 */
+	public static BTreeFile convertSorted(File inFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
+					throws IOException, DbException {
+		// start from an empty file
+		new FileOutputStream(bFile).close();
+		TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+		BTreeFile bf = new BTreeFile(bFile, keyField, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		// pages of an earlier file at the same path would shadow the new ones
+		for(Page p : Database.getBufferPool().getAllPages()) {
+			if(p.getId().getTableId() == bf.getId())
+				Database.getBufferPool().discardPage(p.getId());
+		}
+
+		BufferedReader br = new BufferedReader(new FileReader(inFile));
+		try {
+			bulkLoad(new TextTupleIterator(br, td, fieldSeparator), bf, npagebytes,
+					numFields, typeAr, keyField);
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			br.close();
+		}
+		return bf;
+	}
+
+	/**
+	 * Reads the tuples of a raw data file one line at a time.
+	 */
+	private static class TextTupleIterator implements Iterator<Tuple> {
+		private final BufferedReader br;
+		private final TupleDesc td;
+		private final String separator;
+		private String line;
+
+		TextTupleIterator(BufferedReader br, TupleDesc td, char fieldSeparator) {
+			this.br = br;
+			this.td = td;
+			this.separator = java.util.regex.Pattern.quote(String.valueOf(fieldSeparator));
+			this.line = null;
+		}
+
+		public boolean hasNext() {
+			try {
+				while(line == null) {
+					line = br.readLine();
+					if(line == null)
+						return false;
+					if(line.trim().isEmpty())
+						line = null;
+				}
+				return true;
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public Tuple next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			String[] values = line.split(separator, -1);
+			if(values.length != td.numFields())
+				throw new UncheckedIOException(new IOException("BAD LINE : " + line));
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < values.length; i++) {
+					String v = values[i].trim();
+					if(td.getFieldType(i) == Type.INT_TYPE)
+						t.setField(i, new IntField(Integer.parseInt(v)));
+					else
+						t.setField(i, new StringField(v, Type.STRING_LEN));
+				}
+			} catch(NumberFormatException e) {
+				throw new UncheckedIOException(new IOException("BAD LINE : " + line));
+			}
+			line = null;
+			return t;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Build a B+ tree bottom-up from tuples sorted on the key field: leaf
+	 * pages are written as they fill up, and internal pages as the entries
+	 * pointing to them fill up. Only a few pages worth of tuples and entries
+	 * are held in memory, so the input may be streamed from disk.
+	 * 
+	 * @param tuples - the tuples to add to the file, sorted on keyField
+	 * @param bf - the empty BTreeFile to fill
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @throws IOException
+	 * @throws DbException if the tuples are not sorted on keyField
+	 */
+	private static void bulkLoad(Iterator<Tuple> tuples, BTreeFile bf, int npagebytes,
+			int numFields, Type[] typeAr, int keyField) 
+					throws IOException, DbException {
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
@@ -224,13 +351,14 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + keyType.getLen(); 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + 1 + keyType.getLen(); 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
@@ -247,7 +375,13 @@ public class BTreeFileEncoder {
 		ArrayList<Tuple> page1 = new ArrayList<Tuple>();
 		ArrayList<Tuple> page2 = new ArrayList<Tuple>();
 		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
+		Field prevKey = null;
+		while(tuples.hasNext()) {
+			Tuple tup = tuples.next();
+			if(prevKey != null && tup.getField(keyField).compare(Op.LESS_THAN, prevKey)) {
+				throw new DbException("tuples are not sorted on field " + keyField);
+			}
+			prevKey = tup.getField(keyField);
 			if(page1.size() < nrecords) {
 				page1.add(tup);
 			}
@@ -327,12 +461,9 @@ public class BTreeFileEncoder {
 		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
 
-		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
+		// set all the parent and sibling pointers, and the high keys
+		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid), null, null);
 		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
 	}
 
 	/**
@@ -346,48 +477,67 @@ public class BTreeFileEncoder {
 	 */
 	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
 			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+		// iterate rather than recurse, there may be many more leaves than stack frames
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setRightSiblingId(rightSiblingId);
+			bf.writePage(page);
+			rightSiblingId = pid;
+			pid = page.getLeftSiblingId();
 		}
 	}
 
 	/**
-	 * Recursive function to set all the parent pointers
+	 * Recursive function to set all the parent pointers, the high keys, and the right
+	 * sibling pointers of the internal pages. Pages are visited left to right on every level.
 	 * 
 	 * @param bf - the BTreeFile
 	 * @param pid - id of the page to update with the parent pointer
 	 * @param parent - the id of the page's parent
+	 * @param highKey - the high key of the page, the key to its right in the parent, or null
+	 * @param rightSiblingId - the id of the page to its right on its level if pid is an 
+	 * internal page, or null
 	 * @throws IOException
 	 * @throws DbException
 	 */
-	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent) 
-			throws IOException, DbException {
+	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent, Field highKey, 
+			BTreePageId rightSiblingId) throws IOException, DbException {
 		if(pid.pgcateg() == BTreePageId.INTERNAL) {
 			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
 			page.setParentId(parent);
-
+			page.setHighKey(highKey);
+			page.setRightSiblingId(rightSiblingId);
+
+			// the last child is followed by the first child of the right sibling
+			BTreePageId nextChild = null;
+			if(rightSiblingId != null) {
+				BTreeInternalPage right = (BTreeInternalPage) bf.readPage(rightSiblingId);
+				nextChild = right.iterator().next().getLeftChild();
+			}
 			Iterator<BTreeEntry> it = page.iterator();
 			BTreeEntry e = null;
 			while(it.hasNext()) {
 				e = it.next();
-				setParents(bf, e.getLeftChild(), pid);
+				setParents(bf, e.getLeftChild(), pid, e.getKey(), siblingId(e.getRightChild()));
 			}
 			if(e != null) {
-				setParents(bf, e.getRightChild(), pid);
+				setParents(bf, e.getRightChild(), pid, highKey, siblingId(nextChild));
 			}
 			bf.writePage(page);
 		}
 		else { // pid.pgcateg() == BTreePageId.LEAF
 			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
 			page.setParentId(parent);
+			page.setHighKey(highKey);
 			bf.writePage(page);
 		}
 	}
 
+	// leaf siblings are set by setRightSiblingPtrs
+	private static BTreePageId siblingId(BTreePageId pid) {
+		return (pid == null || pid.pgcateg() != BTreePageId.INTERNAL ? null : pid);
+	}
+
 	/**
 	 * Write out any remaining entries and update the parent pointers.
 	 * 
@@ -510,8 +660,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + typeAr[keyField].getLen(); 
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -537,6 +687,8 @@ public class BTreeFileEncoder {
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
+		dos.writeByte(0); // no high key
+		dos.write(new byte[typeAr[keyField].getLen()]);
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -625,8 +777,9 @@ public class BTreeFileEncoder {
 			Type keyType, int childPageCategory)
 					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + 1 + keyType.getLen(); 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -650,6 +803,9 @@ public class BTreeFileEncoder {
 
 		dos.writeInt(0); // parent pointer
 		dos.writeByte((byte) childPageCategory);
+		dos.writeInt(0); // right sibling pointer
+		dos.writeByte(0); // no high key
+		dos.write(new byte[keyType.getLen()]);
 
 		int i = 0;
 		byte headerbyte = 0;
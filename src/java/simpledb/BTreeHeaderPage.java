@@ -25,6 +25,8 @@ public class BTreeHeaderPage implements Page {
 
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
+	private final PageLatch latch = new PageLatch();
+	private volatile long lsn;
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -113,6 +115,21 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	/**
+	 * @return the latch of this page
+	 */
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -20,6 +20,7 @@ public class BTreeInternalPage extends BTreePage {
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // internal node or 0
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -46,8 +47,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * has m+1 pointers to children), the category of all child pages (either 
+	 * leaf or internal), the right sibling pointer and the high key.
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
@@ -81,6 +82,15 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
+		// read the right sibling pointer and the high key
+		try {
+			Field f = Type.INT_TYPE.parse(dis);
+			this.rightSibling = ((IntField) f).getValue();
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+		readHighKey(dis);
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -118,8 +128,9 @@ public class BTreeInternalPage extends BTreePage {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// right sibling pointer, high key
+		int extraBits = 3 * INDEX_SIZE * 8 + 8 + 1 + getHighKeySize() * 8; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -252,6 +263,14 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the right sibling pointer and the high key
+		try {
+			dos.writeInt(rightSibling);
+			writeHighKey(dos);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -315,7 +334,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+		int zerolen = BufferPool.getPageSize() - (2 * INDEX_SIZE + 1 + getHighKeySize() + header.length + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
@@ -558,6 +577,38 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Get the id of the right sibling of this page, the next page of its level
+	 * @return the id of the right sibling, or null
+	 * @see BTreePage#getHighKey()
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
@@ -735,7 +786,6 @@ class BTreeInternalPageIterator implements Iterator<BTreeEntry> {
  */
 class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 	int curEntry;
-	BTreePageId nextChildId = null;
 	BTreeEntry nextToReturn = null;
 	BTreeInternalPage p;
 
@@ -752,23 +802,24 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			return true;
 
 		try {
-			if(nextChildId == null) {
-				nextChildId = p.getChildId(curEntry);
-				if(nextChildId == null) {
-					return false;
-				}
+			if(curEntry <= 0) {
+				return false;
 			}
-			while (true) {
-				int entry = curEntry--;
-				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
-					nextToReturn = new BTreeEntry(key, childId, nextChildId);
-					nextToReturn.setRecordId(new RecordId(p.pid, entry));
-					nextChildId = childId;
-					return true;
-				}
+			// the left child is the child of the next used slot on the left, which
+			// need not be the slot right before the entry
+			int prevEntry = curEntry - 1;
+			while(prevEntry > 0 && !p.isSlotUsed(prevEntry)) {
+				prevEntry--;
 			}
+			Field key = p.getKey(curEntry);
+			BTreePageId childId = p.getChildId(prevEntry);
+			if(key == null || childId == null) {
+				return false;
+			}
+			nextToReturn = new BTreeEntry(key, childId, p.getChildId(curEntry));
+			nextToReturn.setRecordId(new RecordId(p.pid, curEntry));
+			curEntry = prevEntry;
+			return true;
 		} catch(NoSuchElementException e) {
 			return false;
 		}
@@ -21,8 +21,11 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	protected Field highKey; // upper bound of the keys in the subtree, or null
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	private final PageLatch latch = new PageLatch();
+	private volatile long lsn;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -109,6 +112,69 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Get the high key of this page. As in the B-link trees of Lehman and Yao, the high key
+	 * is an upper bound of the keys in the subtree of this page, and the pages of a level are
+	 * linked to the right. A split moves the keys above the new high key to a page on the right
+	 * before the parent learns about it, so a search for a greater key that reaches this page
+	 * moves right instead of waiting for the split.
+	 * @return the high key, or null if this page is the right-most one of its level or the
+	 * high key isn't known
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null
+	 * @throws DbException if the key is not of the type of the key field
+	 */
+	public void setHighKey(Field key) throws DbException {
+		if(key != null && key.getType() != td.getFieldType(keyField)) {
+			throw new DbException("key field type mismatch in setHighKey");
+		}
+		highKey = key;
+	}
+
+	/**
+	 * @return the number of bytes of the high key in the page data: a byte telling whether
+	 * there is a high key, followed by the key
+	 */
+	protected int getHighKeySize() {
+		return 1 + td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * Read the high key of this page from the page data.
+	 */
+	protected void readHighKey(DataInputStream dis) throws IOException {
+		if(dis.readByte() == 0) {
+			highKey = null;
+			dis.skipBytes(td.getFieldType(keyField).getLen());
+			return;
+		}
+		try {
+			highKey = td.getFieldType(keyField).parse(dis);
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write the high key of this page to the page data.
+	 */
+	protected void writeHighKey(DataOutputStream dos) throws IOException {
+		if(highKey == null) {
+			dos.writeByte(0);
+			dos.write(new byte[td.getFieldType(keyField).getLen()]);
+		}
+		else {
+			dos.writeByte(1);
+			highKey.serialize(dos);
+		}
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -128,6 +194,21 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * @return the latch of this page
+	 */
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
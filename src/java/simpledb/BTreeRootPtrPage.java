@@ -23,6 +23,8 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	private final PageLatch latch = new PageLatch();
+	private volatile long lsn;
 
 	/**
 	 * Constructor.
@@ -51,6 +53,21 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/**
+	 * @return the latch of this page
+	 */
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -278,7 +278,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-		int tuplesPerPage = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		// pointer bytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + Type.INT_TYPE.getLen();
+		int tuplesPerPage = (BufferPool.getPageSize() * 8 - pointerbytes * 8) /  (bytesPerTuple + 1);
 		return tuplesPerPage;
 	}
 	
@@ -323,8 +325,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumEntriesPerPage() {
 		int nentrybytes = Type.INT_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + 1 + Type.INT_TYPE.getLen(); 
 		int entriesPerPage = (BufferPool.getPageSize() * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 		return entriesPerPage;
 	}
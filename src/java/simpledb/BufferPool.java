@@ -3,6 +3,8 @@ package simpledb;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -26,44 +28,189 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of stripes the page table is partitioned into. */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /** Replacement policy used when none is given to the constructor. */
+    public static final EvictionPolicy.Type DEFAULT_EVICTION_POLICY = EvictionPolicy.Type.LRU;
+
+    /**
+     * Pool is the page table of the buffer pool. It is partitioned into a
+     * number of stripes by PageId; each stripe has its own map, its own
+     * eviction policy and its own monitor, so that misses on pages living in
+     * different stripes can be read in and installed in parallel. The
+     * capacity of the pool is global: a put into any stripe may evict from
+     * any other stripe when the pool is full.
+     */
     class Pool{
-        private Map<Integer, Page> m;
+        class Stripe{
+            private final HashMap<PageId, Page> pages;
+            private final EvictionPolicy policy;
+            private final Predicate<PageId> evictable;
+
+            Stripe(int initialCapacity, EvictionPolicy policy){
+                pages = new HashMap<>(initialCapacity);
+                this.policy = policy;
+                evictable = new Predicate<PageId>() {
+                    public boolean test(PageId pid) {
+                        Page p = pages.get(pid);
+                        return p.isDirty() == null && p.getLatch().isFree()
+                            && (!lockManager.isWriteLocked(pid) || pid instanceof BTreePageId);
+                    }
+                };
+            }
+        }
+
+        private final Stripe[] stripes;
+        private final AtomicInteger size;
 
-        Pool(int maxNumPages){
-            m = new LinkedHashMap<>(maxNumPages, 0.75f, true);
+        Pool(int maxNumPages, int numStripes, EvictionPolicy.Type policyType){
+            stripes = new Stripe[numStripes];
+            EvictionPolicy[] policies = policyType.createStripes(maxNumPages, numStripes);
+            for(int i = 0; i < numStripes; i++)
+                stripes[i] = new Stripe(maxNumPages / numStripes + 1, policies[i]);
+            size = new AtomicInteger(0);
         }
 
-        public void put(int k, Page v){
-            m.put(k, v);
+        Stripe stripeFor(PageId pid){
+            return stripes[(pid.hashCode() & 0x7fffffff) % stripes.length];
         }
 
-        public Page get(int k){
-            return m.get(k);
+        public Page get(PageId pid){
+            Stripe s = stripeFor(pid);
+            synchronized (s) {
+                Page p = s.pages.get(pid);
+                if(p != null)
+                    s.policy.pageAccessed(pid);
+                return p;
+            }
+        }
+
+        /**
+         * Install a page in its stripe.
+         * @return true if the page was not in the pool before
+         */
+        public boolean put(PageId pid, Page page){
+            Stripe s = stripeFor(pid);
+            boolean added;
+            synchronized (s) {
+                added = (s.pages.put(pid, page) == null);
+                if(added)
+                    s.policy.pageAdded(pid);
+                else
+                    s.policy.pageAccessed(pid);
+            }
+            if(added)
+                size.incrementAndGet();
+            return added;
         }
 
-        public void remove(int k){
-            m.remove(k);
+        /**
+         * Install a page in its stripe unless the stripe has one with the
+         * same id.
+         * @return the page that was in the pool, or null if page was installed
+         */
+        public Page putIfAbsent(PageId pid, Page page){
+            Stripe s = stripeFor(pid);
+            synchronized (s) {
+                Page cached = s.pages.get(pid);
+                if(cached != null){
+                    s.policy.pageAccessed(pid);
+                    return cached;
+                }
+                s.pages.put(pid, page);
+                s.policy.pageAdded(pid);
+            }
+            size.incrementAndGet();
+            return null;
         }
 
-        public boolean containsKey(int k){
-            return m.containsKey(k);
+        /** Like get, but doesn't count as an access for the eviction policy. */
+        public Page peek(PageId pid){
+            Stripe s = stripeFor(pid);
+            synchronized (s) {
+                return s.pages.get(pid);
+            }
         }
 
-        public Set<Integer> keySet(){
-            return m.keySet();
+        public Page remove(PageId pid){
+            Stripe s = stripeFor(pid);
+            Page removed;
+            synchronized (s) {
+                removed = s.pages.remove(pid);
+                if(removed != null)
+                    s.policy.pageRemoved(pid);
+            }
+            if(removed != null)
+                size.decrementAndGet();
+            return removed;
         }
 
-        public Set<Map.Entry<Integer, Page>> entrySet() {return m.entrySet();}
+        public int size(){
+            return size.get();
+        }
+
+        public int numStripes(){
+            return stripes.length;
+        }
+
+        /**
+         * Remove a clean, unlatched page chosen by the eviction policy, looking
+         * at the stripe of pid first and then at the other stripes. Pages some
+         * transaction may change are not evicted, but pages that are only
+         * read locked are: nobody can change them until the locks go away, so
+         * reading them back in later gives the same page. So are clean B+ tree
+         * pages: BTreeFile changes the pages it locked through its own map of
+         * them and puts them back once the change is done, see
+         * BTreeFile#getPage. Stripe monitors are never nested.
+         * <p>
+         * Every stripe is first asked for a page its policy is ready to give
+         * up (see EvictionPolicy#chooseColdVictim), and only then for any
+         * evictable page.
+         * @return the evicted page, or null if every page is dirty or write locked
+         */
+        public Page evict(PageId pid){
+            int first = (pid.hashCode() & 0x7fffffff) % stripes.length;
+            for(int pass = 0; pass < 2; pass++){
+                for(int i = 0; i < stripes.length; i++){
+                    Stripe s = stripes[(first + i) % stripes.length];
+                    synchronized (s) {
+                        PageId victim = (pass == 0 ? s.policy.chooseColdVictim(s.evictable)
+                                : s.policy.chooseVictim(s.evictable));
+                        if(victim != null){
+                            size.decrementAndGet();
+                            return s.pages.remove(victim);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        /** @return a snapshot of the pages currently in the pool */
+        public List<Page> values(){
+            List<Page> all = new ArrayList<>(size.get());
+            for(Stripe s : stripes){
+                synchronized (s) {
+                    all.addAll(s.pages.values());
+                }
+            }
+            return all;
+        }
     }
 
     private int maxNumPages;
-    private int remainingPairNum;
     private Pool m;
-    private List<Page> allPages;
     private LTM lockManager;
-    private String readingPageSynchronizer;
+    private PagePrefetcher prefetcher;
+    private VersionStore versions;
     // a map keeping track of which pages a transaction has touched
     private volatile Map<TransactionId, Set<PageId>> transactionPageRecords;
+    // commits whose pages are logged but not written yet, see flushPages
+    private final Map<TransactionId, PreparedCommit> preparedCommits;
+    // pages written with the changes of a running transaction, by the
+    // transaction; they are clean but still need its commit or abort
+    private final Map<PageId, TransactionId> stolenPages;
     private DbLogger logger = new DbLogger(getClass().getName(), getClass().getName() + ".log", true);
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -71,46 +218,125 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in a page table
+     * partitioned into numStripes stripes.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numStripes number of stripes of the page table. It is capped at
+     *                   numPages; 1 gives a single eviction policy and a single lock.
+     */
+    public BufferPool(int numPages, int numStripes) {
+        this(numPages, numStripes, DEFAULT_EVICTION_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in a page table
+     * partitioned into numStripes stripes, each replacing pages with its own
+     * instance of the given eviction policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numStripes number of stripes of the page table.
+     * @param policy the page replacement policy.
+     */
+    public BufferPool(int numPages, int numStripes, EvictionPolicy.Type policy) {
         // some code goes here
         maxNumPages = numPages;
-        remainingPairNum = maxNumPages;
-//        m = new LinkedHashMap<>(remainingPairNum, 0.75f, true);
-        m = new Pool(remainingPairNum);
-        allPages = new LinkedList<>();
+        m = new Pool(maxNumPages, Math.max(1, Math.min(numStripes, numPages)), policy);
         lockManager = new LTM();
         transactionPageRecords = new ConcurrentHashMap<>();
-        readingPageSynchronizer = " ";
+        preparedCommits = new ConcurrentHashMap<>();
+        stolenPages = new ConcurrentHashMap<>();
+        prefetcher = new PagePrefetcher(this);
+        versions = new VersionStore(this);
     }
 
-    public Page getPage(int pageHashCode) {
-        if(!m.containsKey(pageHashCode)) return null;
-        return m.get(pageHashCode);
+    public Page getPage(PageId pid) {
+        return m.get(pid);
     }
 
-    public void putPage(int pageHashCode, Page page) throws DbException {
-        logger.log("In putPage, remaining capacity is: " + this.remainingPairNum);
+    public void putPage(PageId pid, Page page) throws DbException {
+        logger.log("In putPage, cached pages: " + m.size());
         logger.log("Trying to cache page: " + page.getId());
-        if (this.remainingPairNum < 0)
-            throw new DbException("Buffer pool is full!");
-        boolean hasKey = m.containsKey(pageHashCode);
-        m.put(pageHashCode, page);
-        allPages.add(page);
-        if(!hasKey){
+        if(m.put(pid, page)){
             logger.log("Page not in buffer pool");
-            this.remainingPairNum--;
-
-            while (this.remainingPairNum < 0) {
+            while (m.size() > maxNumPages) {
                 logger.log("Remove page from buffer pool");
-                evictPage(); // remove the page from the buffer pool
+                evictPage(pid); // remove a page from the buffer pool
+            }
+        }
+    }
+
+    /**
+     * Cache page unless a page with the same id is cached already, e.g. a
+     * page another transaction appended and changed first.
+     * @return the page cached under pid
+     */
+    public Page putPageIfAbsent(PageId pid, Page page) throws DbException {
+        Page cached = m.putIfAbsent(pid, page);
+        if(cached != null)
+            return cached;
+        while (m.size() > maxNumPages)
+            evictPage(pid);
+        return page;
+    }
+
+    public List<Page> getAllPages(){
+        return m.values();
+    }
+
+    /** @return the read-ahead prefetcher of this buffer pool */
+    public PagePrefetcher getPrefetcher(){
+        return prefetcher;
+    }
+
+    /** @return the cached page with the given id, or null, without touching the eviction policy */
+    Page peekPage(PageId pid){
+        return m.peek(pid);
+    }
+
+    /**
+     * Read a page into the pool on behalf of the prefetcher, without taking
+     * any lock. The read happens under the monitor of the page's stripe, like
+     * a miss in getPage, so a newer cached version is never replaced.
+     *
+     * @return the page read, or null if it was already cached
+     */
+    Page readAhead(PageId pid) throws DbException {
+        Page pg;
+        synchronized (m.stripeFor(pid)) {
+            if(m.peek(pid) != null)
+                return null;
+            DbFile dbFile;
+            try {
+                dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                throw new DbException("Can not get DbFile for table with ID: " + pid.getTableId());
             }
+            pg = dbFile.readPage(pid);
+            // account for the page before anybody can find it in the pool
+            prefetcher.pageReadAhead(pid);
+            m.put(pid, pg);
         }
+        return pg;
     }
 
-    public synchronized List<Page> getAllPages(){
-//        List<Page> allPages = new ArrayList<>();
-//        for(int key : m.keySet())
-//            allPages.add(m.get(key));
-        return allPages;
+    /**
+     * Evict pages until the pool is within its capacity again after a page
+     * was read ahead.
+     * @return false if every other page is dirty or locked
+     */
+    boolean makeRoomAfterReadAhead(PageId pid){
+        try {
+            while (m.size() > maxNumPages)
+                evictPage(pid);
+        } catch (DbException e) {
+            return false;
+        }
+        return true;
     }
 
     public static int getPageSize() {
@@ -127,9 +353,137 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Lock a page without reading it, e.g. a page being appended to its
+     * file. The lock is released when the transaction completes.
+     */
     public void lockPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        lockManager.getLock(tid, pid, perm);
+        if(versions.getSnapshot(tid) != null)
+            throw new DbException("Transaction " + tid + " is a read-only snapshot");
+        lockAndRecord(tid, pid, perm);
+    }
+
+    /**
+     * Get the intention lock on a table that a lock in mode perm on one of
+     * its pages needs, without locking a page, e.g. before waiting for
+     * another lock that must not be held while the table is locked. The
+     * lock is released when the transaction completes.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if(versions.getSnapshot(tid) != null)
+            throw new DbException("Transaction " + tid + " is a read-only snapshot");
+        lockManager.getTableLock(tid, tableId, perm);
+    }
+
+    /**
+     * Make tid a read-only transaction that reads the database as it was
+     * when this is called. Its pages are the committed images of that
+     * moment, read without taking any lock, so it never waits for writers
+     * and writers never wait for it. Asking for a page with any other
+     * permission than READ_ONLY fails. The snapshot ends when the
+     * transaction completes.
+     *
+     * @param tid the ID of a transaction that hasn't read any page yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /** @return the version store keeping the page images snapshots read */
+    VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * @return the last committed image of a page: the before image of the
+     *         cached page, or the page on disk
+     */
+    Page readCommitted(PageId pid) throws DbException {
+        Page pg = getPage(pid);
+        if(pg != null)
+            return pg.getBeforeImage();
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (NoSuchElementException e) {
+            throw new DbException("Can not get DbFile for table with ID: " + pid.getTableId());
+        }
+    }
+
+    /** @return true if tid reads through a snapshot, see {@link #beginSnapshot} */
+    boolean isSnapshot(TransactionId tid) {
+        return versions.getSnapshot(tid) != null;
+    }
+
+    /**
+     * Retrieve a page without locking it, with its latch held: shared, or
+     * exclusive if exclusive is set. The page is read into the pool if it
+     * isn't cached, and can't be evicted until the caller releases the
+     * latch, which it must do as soon as it is done reading or changing
+     * the page. Used for pages that are only protected by latches, e.g.
+     * the internal pages of a B+ tree during a descent.
+     *
+     * @param pid the ID of the requested page
+     * @param exclusive whether to hold the latch exclusive
+     */
+    public Page getLatchedPage(PageId pid, boolean exclusive) throws DbException {
+        while (true) {
+            Page pg = getPage(pid);
+            boolean read = false;
+            if(pg == null) {
+                synchronized (m.stripeFor(pid)) {
+                    pg = getPage(pid);
+                    if(pg == null) {
+                        try {
+                            pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                        } catch (NoSuchElementException e) {
+                            throw new DbException("Can not get DbFile for table with ID: " + pid.getTableId());
+                        }
+                        m.put(pid, pg);
+                        read = true;
+                    }
+                }
+            }
+            if(exclusive)
+                pg.getLatch().acquireExclusive();
+            else
+                pg.getLatch().acquireShared();
+            // evicted or replaced before the latch was taken
+            if(m.peek(pid) != pg) {
+                releaseLatch(pg, exclusive);
+                continue;
+            }
+            // make room once the page is latched, so that it isn't the one evicted
+            if(read) {
+                try {
+                    while (m.size() > maxNumPages)
+                        evictPage(pid);
+                } catch (DbException e) {
+                    releaseLatch(pg, exclusive);
+                    throw e;
+                }
+            }
+            return pg;
+        }
+    }
+
+    private static void releaseLatch(Page pg, boolean exclusive) {
+        if(exclusive)
+            pg.getLatch().releaseExclusive();
+        else
+            pg.getLatch().releaseShared();
+    }
+
+    // the page a snapshot transaction sees, or null if tid is not one
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = versions.getSnapshot(tid);
+        if(snapshot == null)
+            return null;
+        if(perm != Permissions.READ_ONLY)
+            throw new DbException("Transaction " + tid + " is a read-only snapshot");
+        return versions.read(pid, snapshot);
     }
 
     /**
@@ -152,45 +506,103 @@ public class BufferPool {
         // some code goes here
         Catalog catalog = Database.getCatalog();
         logger.log("--Transaction" + tid + " trying to read page in buffer pool: " + pid + "----");
-        logger.log("with " + (perm == Permissions.READ_ONLY ? " read " : " write ") + "lock");
-        // trying to get a lock on the page. Might throw TransactionAbortedException
-        lockManager.getLock(tid, pid, perm);
-        Set<PageId> allPids;
-        if(!transactionPageRecords.containsKey(tid)){
-            allPids = new HashSet<>();
-        }else{
-            allPids = transactionPageRecords.get(tid);
-        }
-        allPids.add(pid);
-        transactionPageRecords.put(tid, allPids);
-        HeapPage pg = (HeapPage) getPage(pid.hashCode()); // check if page is already in the pool
+        logger.log("with " + perm + " lock");
+        Page snapshotPage = getSnapshotPage(tid, pid, perm);
+        if(snapshotPage != null)
+            return snapshotPage;
+        lockAndRecord(tid, pid, perm);
+        Page pg = getPage(pid); // check if page is already in the pool
         if(pg != null) {
             logger.log("Transaction" + tid + ": Page in buffer pool!");
+            prefetcher.pageRequested(pid);
             return pg;
         }
         logger.log("Transaction" + tid + ": Not in buffer pool.");
-        synchronized (readingPageSynchronizer) {
-            pg = (HeapPage) getPage(pid.hashCode());
+        // only misses on the same stripe are serialized
+        synchronized (m.stripeFor(pid)) {
+            pg = getPage(pid);
             if(pg != null) {
                 logger.log("Transaction" + tid + ": Page is read in buffer pool by some other thread!");
+                prefetcher.pageRequested(pid);
                 return pg;
             }
             logger.log("Transaction" + tid + ": Read page from the disk");
-            HeapFile dbFile;
+            DbFile dbFile;
             try {
-                dbFile = (HeapFile) catalog.getDatabaseFile(pid.getTableId());
-
+                dbFile = catalog.getDatabaseFile(pid.getTableId());
             } catch (NoSuchElementException e) {
                 e.printStackTrace();
                 throw new DbException("Transaction" + tid + ": Can not get DbFile for table with ID: " + pid.getTableId());
             }
             // read page from the disk
-            pg = (HeapPage) dbFile.readPage(pid);
-            // store the newly read page into the buffer pool
-            putPage(pid.hashCode(), pg);
-            logger.log("---Transaction" + tid + ": End of get page in buffer pool----");
+            pg = dbFile.readPage(pid);
+            m.put(pid, pg);
+        }
+        // make room outside of the stripe monitor, eviction may visit other stripes
+        while (m.size() > maxNumPages)
+            evictPage(pid);
+        logger.log("---Transaction" + tid + ": End of get page in buffer pool----");
+        return pg;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but read pages that are not cached in the pool into the given ring
+     * instead of installing them in the pool. Used by large sequential scans
+     * so that they don't evict the pages other transactions are working on.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page; the ring is only
+     *             used for READ_ONLY requests
+     * @param ring the ring to read the page into, may be null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        if(ring == null || perm != Permissions.READ_ONLY || versions.getSnapshot(tid) != null)
+            return getPage(tid, pid, perm);
+        logger.log("--Transaction" + tid + " trying to read page through a buffer ring: " + pid + "----");
+        // the lock is taken first so that nobody can dirty the page before it is read from the disk
+        lockAndRecord(tid, pid, perm);
+        Page pg = getPage(pid);
+        if(pg != null) {
+            prefetcher.pageRequested(pid);
             return pg;
         }
+        pg = ring.getPage(pid);
+        if(pg != null)
+            return pg;
+        DbFile dbFile;
+        try {
+            dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            throw new DbException("Transaction" + tid + ": Can not get DbFile for table with ID: " + pid.getTableId());
+        }
+        pg = dbFile.readPage(pid);
+        ring.putPage(pg);
+        return pg;
+    }
+
+    // get a lock on the page and remember that the transaction has touched it.
+    // Might throw TransactionAbortedException
+    private void lockAndRecord(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        lockManager.getLock(tid, pid, perm);
+        // threads of the same transaction may lock pages at the same time
+        transactionPageRecords.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * Lock a tuple exclusively before changing it on a page the transaction
+     * holds in {@link Permissions#TUPLE_WRITE} mode. The lock is released
+     * when the transaction completes.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     */
+    public void lockTuple(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException, DbException {
+        lockManager.getTupleLock(tid, rid);
     }
 
     /**
@@ -211,9 +623,9 @@ public class BufferPool {
             logger.log("Transaction" + tid + ": Db exception happened! Page already released on page " + pid);
             return;
         }
-        assert transactionPageRecords.containsKey(tid);
-        assert transactionPageRecords.get(tid).contains(pid);
-        transactionPageRecords.get(tid).remove(pid);
+        Set<PageId> pids = transactionPageRecords.get(tid);
+        if(pids != null)
+            pids.remove(pid);
         logger.log("Transaction" + tid + ": end of releasePage() on page " + pid);
     }
 
@@ -235,6 +647,25 @@ public class BufferPool {
         return lockManager.holdsLock(tid, p);
     }
 
+    /**
+     * Choose which transaction of a deadlock is aborted.
+     *
+     * @param policy the victim policy of the deadlock detector
+     */
+    public void setDeadlockVictimPolicy(DeadlockDetector.VictimPolicy policy) {
+        lockManager.getDeadlockDetector().setVictimPolicy(policy);
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on a table before
+     * they are replaced by a single lock on the whole table.
+     *
+     * @param threshold the page lock count that triggers escalation
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -253,42 +684,309 @@ public class BufferPool {
             logger.log("Try to abort transaction");
         else
             logger.log("Try to commit transaction");
+        if(versions.endSnapshot(tid))
+            return;
 
         if(!transactionPageRecords.containsKey(tid)){
             logger.log("It's weird that transaction " + tid + " does not seem to have any pages");
+            // it may still hold table locks
+            releaseAllLocks(tid);
             return;
         }
         Set<PageId> pids = transactionPageRecords.get(tid);
         logger.log("Transaction " + tid + " has " + pids.size() + " pages");
+        // rolling back index pages changes the structure of the trees under
+        // the feet of optimistic descents
+        List<BTreeFile> indexes = indexFiles(pids);
+        if(!commit){
+            for(BTreeFile f : indexes)
+                f.beginStructureChange();
+        }
+        try {
+            complete(tid, commit, pids);
+        } finally {
+            for(BTreeFile f : indexes){
+                if(!commit)
+                    f.endStructureChange(tid, true);
+                f.endUnfinishedChanges(tid);
+            }
+        }
+        logger.log("In transactionComplete() and trying to release all locks transaction " + tid + " holds");
+        releaseAllLocks(tid);
+    }
+
+    // the B+ trees among the files of the given pages
+    private static List<BTreeFile> indexFiles(Set<PageId> pids){
+        Set<Integer> tableIds = new HashSet<>();
+        List<BTreeFile> files = new ArrayList<>();
         for(PageId pid : pids){
-            Page p = getPage(pid.hashCode());
-            logger.log("For page " + pid.hashCode());
-            assert p != null;
+            if(pid instanceof BTreePageId && tableIds.add(pid.getTableId())){
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if(f instanceof BTreeFile)
+                    files.add((BTreeFile) f);
+            }
+        }
+        return files;
+    }
+
+    // the pages of a committing transaction, logged ahead of its COMMIT
+    // record, and the LSNs of their records
+    private static class PreparedCommit {
+        final long ts;
+        final List<Page> pages;
+        final Map<PageId, Long> lsns;
+
+        PreparedCommit(long ts, List<Page> pages) {
+            this.ts = ts;
+            this.pages = pages;
+            this.lsns = new HashMap<>();
+        }
+
+        long lastLSN() {
+            long last = -1;
+            for(long lsn : lsns.values())
+                last = Math.max(last, lsn);
+            return last;
+        }
+    }
+
+    // write or roll back the pages of a completing transaction
+    private void complete(TransactionId tid, boolean commit, Set<PageId> pids)
+        throws IOException {
+        PreparedCommit prepared = preparedCommits.remove(tid);
+        if(commit){
+            if(prepared == null)
+                prepared = prepareCommit(tid, pids);
+            if(prepared != null)
+                writeCommitted(tid, prepared);
+            forgetStolenPages(tid, pids);
+            return;
+        }
+        if(prepared != null){
+            // the logged records have no COMMIT record, so recovery undoes them
+            versions.endCommit(prepared.ts, prepared.pages);
+        }
+        try {
+            rollback(tid, pids);
+        } finally {
+            forgetStolenPages(tid, pids);
+        }
+    }
+
+    private void forgetStolenPages(TransactionId tid, Set<PageId> pids){
+        for(PageId pid : pids)
+            stolenPages.remove(pid, tid);
+    }
+
+    // roll back the cached pages of an aborting transaction. Pages whose
+    // changes were stolen are clean; LogFile.rollback restores them on
+    // disk and in the cache, but are reverted here too in case the
+    // transaction aborts without it
+    private void rollback(TransactionId tid, Set<PageId> pids) throws IOException {
+        for(PageId pid : pids){
+            Page p = getPage(pid);
+            logger.log("For page " + pid);
+            if(p == null) {
+                // read through a buffer ring, such pages are never dirty
+                continue;
+            }
+            if(hasTupleChanges(p, tid)) {
+                // other transactions may have changes on the page too
+                logger.log("Trying to roll back the tuples of the page");
+                rollbackTupleChanges((HeapPage) p, tid);
+                continue;
+            }
+            if(p.isDirty() == null && tid.equals(stolenPages.get(pid))) {
+                logger.log("Trying to revert stolen page");
+                Page image = p.getBeforeImage();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                revertPage(image, tid);
+                continue;
+            }
             if(p.isDirty() == null || (!p.isDirty().equals(tid))) {
                 logger.log("not dirty or not dirtied by transaction: " + tid);
                 continue;
             }
-            // for a dirty page
-            if(commit){
-                logger.log("Trying to flush page");
-                flushPage(pid); // flushPage already mark page as not dirty
-            }else{ // revert
-                logger.log("Trying to revert page");
-                p = p.getBeforeImage();
-                p.markDirty(false, tid);
-                m.put(pid.hashCode(), p);
-            }
+            logger.log("Trying to revert page");
+            revertPage(p.getBeforeImage(), tid);
             logger.log("done");
         }
-        logger.log("In transactionComplete() and trying to release all locks transaction " + tid + " holds");
-        releaseAllLocks(tid);
+    }
+
+    // log the committed images of the pages tid changed, after marking them
+    // in the version store, which lets one commit at a time log and write a
+    // page so that its records reach the log in commit order
+    private PreparedCommit prepareCommit(TransactionId tid, Set<PageId> pids)
+        throws IOException {
+        // pages whose committed image changes
+        List<Page> written = new ArrayList<>();
+        for(PageId pid : pids){
+            Page p = getPage(pid);
+            if(p == null) {
+                // read through a buffer ring, such pages are never dirty
+                continue;
+            }
+            // other transactions may have tuple changes on the page too, and
+            // the background writer may have written the page already
+            if(hasTupleChanges(p, tid) || tid.equals(p.isDirty()) || tid.equals(stolenPages.get(pid)))
+                written.add(p);
+        }
+        if(written.isEmpty())
+            return null;
+        PreparedCommit prepared = new PreparedCommit(versions.beginCommit(written), written);
+        LogFile log = Database.getLogFile();
+        boolean logged = false;
+        try {
+            for(Page p : written){
+                if(hasTupleChanges(p, tid)){
+                    HeapPage hp = (HeapPage) p;
+                    HeapPage before, image;
+                    hp.getLatch().acquireShared();
+                    try {
+                        before = hp.getBeforeImage();
+                        image = hp.getCommittedImage(tid);
+                    } finally {
+                        hp.getLatch().releaseShared();
+                    }
+                    log.logWrite(tid, before, image);
+                    prepared.lsns.put(p.getId(), image.getLSN());
+                }else{
+                    log.logWrite(tid, p.getBeforeImage(), p);
+                    prepared.lsns.put(p.getId(), p.getLSN());
+                }
+            }
+            logged = true;
+        } finally {
+            if(!logged)
+                versions.endCommit(prepared.ts, written);
+        }
+        return prepared;
+    }
+
+    // roll back the tuple changes of tid on a cached heap page in place
+    private void rollbackTupleChanges(HeapPage hp, TransactionId tid){
+        hp.getLatch().acquireExclusive();
+        try {
+            hp.rollbackTupleChanges(tid);
+        } finally {
+            hp.getLatch().releaseExclusive();
+        }
+        updateFreeSpace(hp);
+    }
+
+    // replace a cached page by an image of it without the changes of tid
+    private void revertPage(Page image, TransactionId tid){
+        image.markDirty(false, tid);
+        m.put(image.getId(), image);
+        // give the space of the rolled back inserts back to the file
+        if (image instanceof HeapPage)
+            updateFreeSpace((HeapPage) image);
+    }
+
+    private static void updateFreeSpace(HeapPage hp){
+        DbFile f = Database.getCatalog().getDatabaseFile(hp.getId().getTableId());
+        if (f instanceof HeapFile)
+            ((HeapFile) f).getFreeSpaceMap().update(hp.getId().getPageNumber(), hp.getNumEmptySlots());
+    }
+
+    /**
+     * Roll back the changes of tid to the cached copies of pages whose
+     * changes went to disk, see {@link LogFile#rollback}. The log gives the
+     * images of the pages without the changes, and cached pages are
+     * replaced by them; heap pages tid has tuple changes on are rolled back
+     * in place instead, so that the changes of other transactions stay, and
+     * their committed image is put in images.
+     *
+     * @param tid the transaction to roll back
+     * @param images the images of the pages without the changes of tid, by page
+     */
+    void rollbackPages(TransactionId tid, Map<PageId, Page> images){
+        List<BTreeFile> indexes = indexFiles(images.keySet());
+        for(BTreeFile f : indexes)
+            f.beginStructureChange();
+        try {
+            for(Map.Entry<PageId, Page> e : images.entrySet()){
+                Page p = getPage(e.getKey());
+                if(p == null)
+                    continue;
+                if(hasTupleChanges(p, tid)){
+                    rollbackTupleChanges((HeapPage) p, tid);
+                    e.setValue(p.getBeforeImage());
+                }else{
+                    revertPage(e.getValue(), tid);
+                }
+            }
+        } finally {
+            for(BTreeFile f : indexes)
+                f.endStructureChange(tid, true);
+        }
+    }
+
+    // write the logged pages of a committing transaction and make its
+    // changes part of their before images; the log is forced once, up to
+    // the last of their records, which the COMMIT record has forced already
+    // unless the transaction completes without Transaction.commit
+    private void writeCommitted(TransactionId tid, PreparedCommit prepared) throws IOException {
+        try {
+            LogFile log = Database.getLogFile();
+            log.forceTo(prepared.lastLSN());
+            for(Page p : prepared.pages){
+                long lsn = prepared.lsns.get(p.getId());
+                if(hasTupleChanges(p, tid)) {
+                    logger.log("Trying to write the committed tuples of page " + p.getId());
+                    HeapPage hp = (HeapPage) p;
+                    HeapPage image;
+                    hp.getLatch().acquireExclusive();
+                    try {
+                        image = hp.commitTupleChanges(tid);
+                    } finally {
+                        hp.getLatch().releaseExclusive();
+                    }
+                    // the version store lets one commit at a time write the page, so
+                    // images reach the disk in commit order without holding the latch
+                    image.setLSN(lsn);
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(image);
+                    log.pageWritten(image);
+                } else {
+                    logger.log("Trying to write page " + p.getId());
+                    writeCommittedPage(tid, p);
+                }
+                // slots freed by committed deletes can be used by anyone now
+                if(p instanceof HeapPage)
+                    updateFreeSpace((HeapPage) p);
+            }
+        } finally {
+            versions.endCommit(prepared.ts, prepared.pages);
+        }
+    }
+
+    // write a page changed by a committing transaction, unless the
+    // background writer wrote it since it was logged
+    private synchronized void writeCommittedPage(TransactionId tid, Page p) throws IOException {
+        LogFile log = Database.getLogFile();
+        if(p.isDirty() != null){
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            log.pageWritten(p);
+            p.markDirty(false, tid);
+        }
+        p.setBeforeImage();
+    }
+
+    // true if p is a heap page tid changed tuples of, see HeapPage
+    private static boolean hasTupleChanges(Page p, TransactionId tid) {
+        if(!(p instanceof HeapPage))
+            return false;
+        p.getLatch().acquireShared();
+        try {
+            return ((HeapPage) p).hasTupleChanges(tid);
+        } finally {
+            p.getLatch().releaseShared();
+        }
     }
 
     private void releaseAllLocks(TransactionId tid){
-        Set<PageId> pids = new HashSet<>(transactionPageRecords.get(tid));
-        for(PageId pid : pids)
-            releasePage(tid, pid);
-        transactionPageRecords.remove(tid);
+        Set<PageId> pids = transactionPageRecords.remove(tid);
+        lockManager.returnAllLocks(tid, pids == null ? Collections.<PageId>emptySet() : pids);
     }
 
     /**
@@ -308,17 +1006,32 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        HeapFile databaseFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        DbFile databaseFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> modifiedPages = databaseFile.insertTuple(tid, t);
         logger.log("modifiedPages size: " + modifiedPages.size());
         for (Page page : modifiedPages) {
-//            page.markDirty(true, );
-            assert page.isDirty() == tid;
             logger.log("Page " + page.getId() + " is marked dirty");
-            putPage(page.getId().hashCode(), (HeapPage) page);
+            putPage(page.getId(), page);
         }
     }
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid. Like {@link #insertTuple}, but the file fills its pages one after
+     * the other instead of looking for room and locking a page for every
+     * tuple, so each modified page is put in the cache once.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile databaseFile = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page page : databaseFile.insertTuples(tid, tuples))
+            putPage(page.getId(), page);
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -336,10 +1049,10 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
 
-        HeapFile databaseFile = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        DbFile databaseFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> modifiedPages = databaseFile.deleteTuple(tid, t);
         for (Page pg : modifiedPages) {
-            putPage(pg.getId().hashCode(), pg);
+            putPage(pg.getId(), pg);
         }
     }
 
@@ -350,8 +1063,35 @@ public class BufferPool {
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
-        for (Page page : getAllPages())
-            flushPage(page.getId());
+        writePages(getAllPages());
+    }
+
+    /**
+     * Write up to max dirty pages to disk, for the background writer of the
+     * checkpointer. Pages with uncommitted tuple changes are left alone, as
+     * they stay dirty anyway, and so are pages somebody holds the latch of.
+     * So are B+ tree pages: clean ones may be evicted while write locked
+     * (see Pool#evict), and a snapshot would then read uncommitted changes
+     * as their committed image from disk. The pages written may hold changes of running transactions; these
+     * are remembered, so that the commit updates the before images of the
+     * pages and the abort writes them back.
+     *
+     * @param max the maximum number of pages to write
+     * @return the number of pages written
+     * @see Checkpointer
+     */
+    public synchronized int flushDirtyPages(int max) throws IOException {
+        List<Page> pages = new ArrayList<>();
+        for (Page page : getAllPages()) {
+            if (pages.size() == max)
+                break;
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null || !(page instanceof HeapPage) || !page.getLatch().isFree()
+                    || hasTupleChanges(page, dirtier))
+                continue;
+            pages.add(page);
+        }
+        return writePages(pages);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -362,71 +1102,86 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        if(m.remove(pid) != null)
+            prefetcher.pageEvicted(pid);
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Flushes the dirty ones of some pages to disk. The changes are logged
+     * first and the log is forced once for all of them.
+     * @param pages the pages to flush
+     * @return the number of pages written
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private synchronized int writePages(List<Page> pages) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page pageToFlush = getPage(pid.hashCode());
-        TransactionId dirtyTransactionId = pageToFlush.isDirty();
-        if (dirtyTransactionId != null){
-            HeapFile databaseFile = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+        LogFile log = Database.getLogFile();
+        List<Page> dirty = new ArrayList<>();
+        List<TransactionId> dirtiers = new ArrayList<>();
+        long lastLSN = -1;
+        for (Page pageToFlush : pages) {
+            TransactionId dirtyTransactionId = pageToFlush.isDirty();
+            if (dirtyTransactionId == null)
+                continue;
+            log.logWrite(dirtyTransactionId, pageToFlush.getBeforeImage(), pageToFlush);
+            lastLSN = Math.max(lastLSN, pageToFlush.getLSN());
+            dirty.add(pageToFlush);
+            dirtiers.add(dirtyTransactionId);
+        }
+        if (dirty.isEmpty())
+            return 0;
+        // write-ahead logging: the changes are on disk in the log before
+        // they are in the pages
+        log.forceTo(lastLSN);
+        for (int i = 0; i < dirty.size(); i++) {
+            Page pageToFlush = dirty.get(i);
+            DbFile databaseFile = Database.getCatalog().getDatabaseFile(pageToFlush.getId().getTableId());
             databaseFile.writePage(pageToFlush);
-            pageToFlush.markDirty(false, dirtyTransactionId);
+            log.pageWritten(pageToFlush);
+            pageToFlush.markDirty(false, dirtiers.get(i));
+            stolenPages.put(pageToFlush.getId(), dirtiers.get(i));
         }
+        return dirty.size();
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Log the pages the specified transaction changed, ahead of its COMMIT
+     * record, see {@link Transaction#commit}. The pages are written by
+     * {@link #transactionComplete}, once the COMMIT record is on disk; until
+     * then no other commit can log or write them.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        Set<PageId> pids = transactionPageRecords.get(tid);
+        if(pids == null || preparedCommits.containsKey(tid))
+            return;
+        PreparedCommit prepared = prepareCommit(tid, pids);
+        if(prepared != null)
+            preparedCommits.put(tid, prepared);
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     *
+     * @param pid the page being installed; its stripe is searched first
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(PageId pid) throws DbException {
         // some code goes here
         // not necessary for lab1
-//        int k = m.keySet().iterator().next();
         logger.log("In evict page()");
-        Page pageToEvict = null;
-        int k = 0;
-        Set<Map.Entry<Integer, Page>> pages = m.entrySet();
-        for(Map.Entry<Integer, Page> e : pages){
-            Page p = e.getValue();
-            if(p.isDirty() == null && (!lockManager.isPageLock(p.getId()))){
-                pageToEvict = e.getValue();
-                k = e.getKey();
-                break;
-            }
-        }
+        Page pageToEvict = m.evict(pid);
         if(pageToEvict == null) {
             logger.log("all pages in the buffer pool are dirty. throw exception");
             throw new DbException("all pages in the buffer pool are dirty");
         }
-
-        try{
-            logger.log("Try to evict page: " + pageToEvict.getId());
-            flushPage(pageToEvict.getId());
-        }catch (IOException e){
-            e.printStackTrace();
-            logger.log("new exception");
-            throw new DbException("IO exception happens when trying to flush and evict a page to the disk");
-        }
-        logger.log("evicted");
-        m.remove(k);
-        allPages.remove(pageToEvict);
-        remainingPairNum++;
+        // only clean pages are chosen, so there is nothing to write back
+        prefetcher.pageEvicted(pageToEvict.getId());
+        logger.log("evicted page: " + pageToEvict.getId());
         logger.log("End of evict page()");
     }
 }
@@ -0,0 +1,58 @@
+package simpledb;
+
+/**
+ * BufferRing is a small set of private page frames used by large sequential
+ * scans instead of the shared BufferPool, much like a Postgres buffer access
+ * strategy. Pages a scan reads from disk are kept in the ring and recycled in
+ * round-robin order, so scanning a big table does not evict the working set
+ * of other transactions from the pool. Pages that are already cached in the
+ * pool are still read from there.
+ * <p>
+ * Only pages read with READ_ONLY permission go through a ring. A ring
+ * belongs to one iterator and is not thread-safe.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    /** Default number of frames in a ring. */
+    public static final int DEFAULT_RING_PAGES = 16;
+
+    private final Page[] frames;
+    private int next;
+
+    /** Creates a ring with the default number of frames. */
+    public BufferRing() {
+        this(DEFAULT_RING_PAGES);
+    }
+
+    /**
+     * @param numPages the number of frames of the ring
+     */
+    public BufferRing(int numPages) {
+        if (numPages <= 0)
+            throw new IllegalArgumentException("a buffer ring needs at least one frame");
+        frames = new Page[numPages];
+        next = 0;
+    }
+
+    /** @return the page with the given id if it is in the ring, null otherwise */
+    public Page getPage(PageId pid) {
+        for (Page p : frames) {
+            if (p != null && p.getId().equals(pid))
+                return p;
+        }
+        return null;
+    }
+
+    /** Put a page in the ring, replacing the oldest one once the ring is full. */
+    public void putPage(Page page) {
+        frames[next] = page;
+        next = (next + 1) % frames.length;
+    }
+
+    /** @return the number of frames of the ring */
+    public int numPages() {
+        return frames.length;
+    }
+}
@@ -34,11 +34,21 @@ public class Catalog {
     }
 
     private List<TableInfo> catalogs;
+    private final FileHandleCache fileHandles;
     private DbLogger logger = new DbLogger(getClass().getName(), getClass().getName() + ".log",false);
 
     public Catalog() {
         // some code goes here
         catalogs = new LinkedList<>();
+        fileHandles = new FileHandleCache(FileHandleCache.DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * Returns the cache of open table files that DbFiles read and write
+     * their pages through.
+     */
+    public FileHandleCache getFileHandles() {
+        return fileHandles;
     }
 
     /**
@@ -153,6 +163,7 @@ public class Catalog {
     public void clear() {
         // some code goes here
         catalogs.clear();
+        fileHandles.closeAll();
     }
     
     /**
@@ -166,7 +177,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //logger.log("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -194,10 +205,19 @@ public class Catalog {
                         }
                     }
                 }
+                // options after the field list
+                boolean memoryMapped = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (options.toLowerCase().equals("mmap"))
+                    memoryMapped = true;
+                else if (options.length() > 0) {
+                    System.out.println("Unknown table option " + options);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, memoryMapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
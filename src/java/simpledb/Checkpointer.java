@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checkpointer takes the checkpoints of a log file and writes dirty pages in
+ * the background. Checkpoints are fuzzy (see {@link LogFile#logCheckpoint}):
+ * they record which transactions are active and which pages have logged
+ * changes that are not on disk yet, without writing any page, so they don't
+ * hold up transactions.
+ * <p>
+ * Instead, a background writer writes a few dirty heap pages of the buffer
+ * pool at a time (see {@link BufferPool#flushDirtyPages}), so that the
+ * buffer pool keeps clean pages to evict and checkpoints never have to write
+ * a whole buffer pool at once. Both run on one daemon thread, each on its own
+ * interval; an interval of 0 turns them off, which is the default.
+ *
+ * @Threadsafe
+ */
+public class Checkpointer {
+
+    /** Default time between checkpoints; 0 takes no periodic checkpoints. */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 0;
+
+    /** Default time between rounds of the background writer; 0 turns it off. */
+    public static final long DEFAULT_WRITER_INTERVAL_MILLIS = 0;
+
+    /** Default maximum number of pages the background writer writes per round. */
+    public static final int DEFAULT_WRITER_BATCH_SIZE = 8;
+
+    private final LogFile log;
+    private final ScheduledThreadPoolExecutor executor;
+    private long checkpointIntervalMillis; // protected by this
+    private long writerIntervalMillis; // protected by this
+    private volatile int writerBatchSize;
+    private ScheduledFuture<?> checkpointTask; // protected by this
+    private ScheduledFuture<?> writerTask; // protected by this
+    private final AtomicLong checkpoints;
+    private final AtomicLong pagesWritten;
+
+    Checkpointer(LogFile log) {
+        this.log = log;
+        this.checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+        this.writerIntervalMillis = DEFAULT_WRITER_INTERVAL_MILLIS;
+        this.writerBatchSize = DEFAULT_WRITER_BATCH_SIZE;
+        checkpoints = new AtomicLong(0);
+        pagesWritten = new AtomicLong(0);
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-checkpointer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /** @return the time between checkpoints in milliseconds, 0 if there are no periodic checkpoints */
+    public synchronized long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /**
+     * Set the time between checkpoints. Frequent checkpoints keep the log
+     * short, which makes recovery faster.
+     * @param millis the interval in milliseconds; 0 stops periodic checkpoints
+     */
+    public synchronized void setCheckpointIntervalMillis(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("checkpoint interval must not be negative");
+        checkpointIntervalMillis = millis;
+        checkpointTask = reschedule(checkpointTask, millis, new Runnable() {
+            public void run() {
+                checkpoint();
+            }
+        });
+    }
+
+    /** @return the time between rounds of the background writer in milliseconds, 0 if it is off */
+    public synchronized long getWriterIntervalMillis() {
+        return writerIntervalMillis;
+    }
+
+    /**
+     * Set the time between rounds of the background writer.
+     * @param millis the interval in milliseconds; 0 turns the writer off
+     */
+    public synchronized void setWriterIntervalMillis(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("writer interval must not be negative");
+        writerIntervalMillis = millis;
+        writerTask = reschedule(writerTask, millis, new Runnable() {
+            public void run() {
+                writePages();
+            }
+        });
+    }
+
+    /** @return the maximum number of pages the background writer writes per round */
+    public int getWriterBatchSize() {
+        return writerBatchSize;
+    }
+
+    /**
+     * Set the maximum number of pages the background writer writes per round.
+     * @param size the batch size, at least 1
+     */
+    public void setWriterBatchSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("writer batch size must be at least 1");
+        writerBatchSize = size;
+    }
+
+    /** @return the number of periodic checkpoints taken */
+    public long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    /** @return the number of pages written by the background writer */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /** Stop taking checkpoints and writing pages. */
+    public synchronized void stop() {
+        checkpointTask = reschedule(checkpointTask, 0, null);
+        writerTask = reschedule(writerTask, 0, null);
+    }
+
+    private ScheduledFuture<?> reschedule(ScheduledFuture<?> task, long millis, Runnable r) {
+        if (task != null)
+            task.cancel(false);
+        if (millis == 0)
+            return null;
+        return executor.scheduleWithFixedDelay(r, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpoint() {
+        try {
+            log.logCheckpoint();
+            checkpoints.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            // try again at the next checkpoint, the log is still usable
+            e.printStackTrace();
+        }
+    }
+
+    private void writePages() {
+        try {
+            pagesWritten.addAndGet(Database.getBufferPool().flushDirtyPages(writerBatchSize));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Every cached page occupies a frame of a
+ * circular array and has a reference bit that is set whenever the page is
+ * accessed. To find a victim a hand sweeps the frames: a set bit is cleared
+ * and the page is passed over once, the first evictable page with a clear
+ * bit is evicted. Accesses only set a bit, and each sweep step clears one, so
+ * eviction is amortized O(1).
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final Map<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames;
+    private int hand;
+    // frames below this index have been handed out at least once
+    private int used;
+
+    public ClockEvictionPolicy(int capacity) {
+        capacity = Math.max(1, capacity);
+        frames = new PageId[capacity];
+        referenced = new boolean[capacity];
+        frameOf = new HashMap<>();
+        freeFrames = new ArrayDeque<>();
+        hand = 0;
+        used = 0;
+    }
+
+    public void pageAdded(PageId pid) {
+        int frame;
+        if (!freeFrames.isEmpty()) {
+            frame = freeFrames.pop();
+        } else {
+            if (used == frames.length) {
+                // the stripe holds more pages than expected, grow the clock
+                frames = Arrays.copyOf(frames, frames.length * 2);
+                referenced = Arrays.copyOf(referenced, referenced.length * 2);
+            }
+            frame = used++;
+        }
+        frames[frame] = pid;
+        referenced[frame] = true;
+        frameOf.put(pid, frame);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            referenced[frame] = true;
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null)
+            freeFrame(frame);
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        if (used == 0)
+            return null;
+        // two full turns clear every reference bit, after that nothing is evictable
+        for (int steps = 0; steps < 2 * used; steps++) {
+            int frame = hand;
+            hand = (hand + 1) % used;
+            PageId pid = frames[frame];
+            if (pid == null)
+                continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (evictable.test(pid)) {
+                frameOf.remove(pid);
+                freeFrame(frame);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return frameOf.size();
+    }
+
+    private void freeFrame(int frame) {
+        frames[frame] = null;
+        referenced[frame] = false;
+        freeFrames.push(frame);
+    }
+}
@@ -55,11 +55,27 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, BufferPool.DEFAULT_STRIPES);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with a page table of the given number of stripes and return it
+     */
+    public static BufferPool resetBufferPool(int pages, int stripes) {
+        return resetBufferPool(pages, stripes, BufferPool.DEFAULT_EVICTION_POLICY);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given number of stripes and eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, int stripes, EvictionPolicy.Type policy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, stripes, policy));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +91,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._catalog.getFileHandles().closeAll();
     }
 
 }
@@ -43,6 +43,21 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction. Pages
+     * are filled one after the other, so that each affected page is locked
+     * and returned once rather than once per tuple.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  They should be updated to reflect
+     *          that they are now stored in this file.
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -68,6 +83,18 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile that
+     * reads pages missing from the buffer pool into the given ring instead
+     * of the pool. Used by large sequential scans.
+     *
+     * @param ring the buffer ring to read pages through; null behaves
+     *             like {@link #iterator(TransactionId)}
+     * @return an iterator over all the tuples stored in this DbFile.
+     * @see BufferRing
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring);
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * DeadlockDetector keeps the waits-for graph of the transactions blocked in
+ * the lock table and aborts a transaction only when it is part of a cycle.
+ * <p>
+ * The graph is not stored as edges: the detector only remembers which locks
+ * (tables, pages or tuples) every transaction waits for, and asks each of them
+ * which transactions are in the way (holders of a conflicting lock, and
+ * conflicting requests queued ahead). A lock request runs the detection
+ * right before it blocks. A new cycle can only be closed by a new edge,
+ * and new edges only appear when a request blocks, so every cycle is seen
+ * by the request that closes it.
+ * <p>
+ * When a cycle is found, one of its transactions is picked by the
+ * {@link VictimPolicy}. If it is the requesting transaction, the request
+ * fails with a TransactionAbortedException; otherwise the threads of the
+ * victim waiting for a lock are interrupted and their requests fail in the
+ * same way.
+ *
+ * @Threadsafe
+ */
+public class DeadlockDetector {
+
+    /** A lock transactions can wait for, e.g. a table, a page or a tuple. */
+    interface WaitQueue {
+        /**
+         * @return the transactions a waiting request of tid waits for: the
+         *         holders of a conflicting lock and the conflicting
+         *         requests queued before it
+         */
+        Set<TransactionId> blockers(TransactionId tid);
+
+        /**
+         * Make the requests of tid waiting for this lock fail with a
+         * TransactionAbortedException.
+         */
+        void abortWaiter(TransactionId tid);
+    }
+
+    /** How the transaction to abort is chosen among those in a cycle. */
+    public enum VictimPolicy {
+        /** The transaction that started last. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks, the youngest on ties. */
+        LEAST_WORK
+    }
+
+    // locks every blocked transaction is waiting for
+    private final ConcurrentMap<TransactionId, Set<WaitQueue>> waiting;
+    // number of locks a transaction holds, for LEAST_WORK
+    private final ToIntFunction<TransactionId> locksHeld;
+    private volatile VictimPolicy policy;
+
+    /**
+     * @param policy how victims are chosen
+     * @param locksHeld the number of locks a transaction holds
+     */
+    public DeadlockDetector(VictimPolicy policy, ToIntFunction<TransactionId> locksHeld) {
+        this.waiting = new ConcurrentHashMap<>();
+        this.locksHeld = locksHeld;
+        this.policy = policy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return policy;
+    }
+
+    public void setVictimPolicy(VictimPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * A transaction has queued a request for a lock.
+     */
+    void startWaiting(TransactionId tid, WaitQueue lock) {
+        waiting.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(lock);
+    }
+
+    /**
+     * A request of a transaction for a lock has been granted or has failed.
+     */
+    void stopWaiting(TransactionId tid, WaitQueue lock) {
+        waiting.computeIfPresent(tid, (k, locks) -> {
+            locks.remove(lock);
+            return locks.isEmpty() ? null : locks;
+        });
+    }
+
+    /**
+     * Called by a transaction that is about to block: abort the victims of
+     * all the cycles it closes.
+     *
+     * @throws TransactionAbortedException if the transaction itself was
+     *         chosen as a victim
+     */
+    synchronized void beforeBlocking(TransactionId tid) throws TransactionAbortedException {
+        // victims picked here may take a moment to leave the graph
+        Set<TransactionId> aborted = new HashSet<>();
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(tid, aborted)) != null) {
+            TransactionId victim = chooseVictim(cycle);
+            if (victim.equals(tid))
+                throw new TransactionAbortedException();
+            aborted.add(victim);
+            Set<WaitQueue> locks = waiting.get(victim);
+            if (locks != null) {
+                for (WaitQueue lock : locks)
+                    lock.abortWaiter(victim);
+            }
+        }
+    }
+
+    // a cycle of the waits-for graph through start, or null
+    private List<TransactionId> findCycle(TransactionId start, Set<TransactionId> ignored) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(start);
+        return findCycle(start, path, new HashSet<TransactionId>(), ignored) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId start, List<TransactionId> path,
+                              Set<TransactionId> visited, Set<TransactionId> ignored) {
+        TransactionId tid = path.get(path.size() - 1);
+        Set<WaitQueue> locks = waiting.get(tid);
+        if (locks == null)
+            return false;
+        for (WaitQueue lock : locks) {
+            for (TransactionId next : lock.blockers(tid)) {
+                if (next.equals(start))
+                    return true;
+                if (ignored.contains(next) || !visited.add(next))
+                    continue;
+                path.add(next);
+                if (findCycle(start, path, visited, ignored))
+                    return true;
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        int victimWork = 0;
+        for (TransactionId tid : cycle) {
+            int work = (policy == VictimPolicy.LEAST_WORK ? locksHeld.applyAsInt(tid) : 0);
+            if (victim == null || work < victimWork
+                    || (work == victimWork && tid.getId() > victim.getId())) {
+                victim = tid;
+                victimWork = work;
+            }
+        }
+        return victim;
+    }
+}
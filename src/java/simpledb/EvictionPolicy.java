@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which page of a BufferPool stripe is replaced when
+ * the pool is full. The stripe tells the policy about every page that is
+ * added, accessed and removed, and asks it for a victim when it needs room.
+ * <p>
+ * A policy is only used under the monitor of the stripe that owns it, so
+ * implementations don't need to be thread-safe, except for state they share
+ * with the policies of the other stripes, see {@link Type#createStripes}.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** The replacement policies a BufferPool can be created with. */
+    enum Type {
+        /** Least recently used page first, the original BufferPool behavior. */
+        LRU,
+        /** Second chance: a hand sweeps the frames and clears reference bits. */
+        CLOCK,
+        /** 2Q: pages seen once are kept apart from pages that are re-used. */
+        TWO_QUEUE;
+
+        /**
+         * @param capacity the number of pages the policy is expected to track
+         * @return a new, empty policy of this type
+         */
+        public EvictionPolicy create(int capacity) {
+            switch (this) {
+            case CLOCK:
+                return new ClockEvictionPolicy(capacity);
+            case TWO_QUEUE:
+                return new TwoQueueEvictionPolicy(capacity);
+            default:
+                return new LRUEvictionPolicy();
+            }
+        }
+
+        /**
+         * @param capacity the number of pages of the whole pool
+         * @param numStripes the number of stripes of the pool
+         * @return a new, empty policy for every stripe of a pool. The stripes
+         *         of a 2Q pool share the sizes of their queues and A1out,
+         *         which are meant for the whole pool; the other policies are
+         *         independent per stripe
+         */
+        public EvictionPolicy[] createStripes(int capacity, int numStripes) {
+            EvictionPolicy[] policies = new EvictionPolicy[numStripes];
+            TwoQueueEvictionPolicy.Queues queues = new TwoQueueEvictionPolicy.Queues(capacity);
+            for (int i = 0; i < numStripes; i++) {
+                policies[i] = (this == TWO_QUEUE ? new TwoQueueEvictionPolicy(queues)
+                        : create(capacity / numStripes + 1));
+            }
+            return policies;
+        }
+    }
+
+    /** A page that was not tracked by the policy has been cached. */
+    void pageAdded(PageId pid);
+
+    /** A cached page has been read or replaced by a newer version. */
+    void pageAccessed(PageId pid);
+
+    /** A cached page has been dropped without going through chooseVictim. */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page to evict and stop tracking it.
+     *
+     * @param evictable tells whether a page may be evicted right now (i.e. it
+     *                  is clean and not locked)
+     * @return the page to evict, or null if no tracked page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * Like chooseVictim, but return null rather than evict a page the policy
+     * would keep if the pool has better victims in other stripes. The pool
+     * asks every stripe for such a victim before it settles for any.
+     *
+     * @param evictable tells whether a page may be evicted right now
+     * @return the page to evict, or null
+     */
+    default PageId chooseColdVictim(Predicate<PageId> evictable) {
+        return chooseVictim(evictable);
+    }
+
+    /** @return the number of pages tracked by the policy */
+    int size();
+}
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FileHandleCache keeps the FileChannels of table files open between page
+ * reads and writes, so that a page access doesn't cost an open and a close.
+ * Pages are read and written with positional I/O, so concurrent readers of
+ * the same file don't contend on a shared file pointer.
+ * <p>
+ * At most maxOpenFiles channels are kept open; the least recently used one
+ * is closed when another file needs a channel. A channel that is in use by
+ * another thread when it is evicted is closed once that thread is done.
+ *
+ * @Threadsafe
+ */
+public class FileHandleCache {
+
+    /** Default number of table files kept open. */
+    public static final int DEFAULT_MAX_OPEN_FILES = 128;
+
+    private class Handle {
+        final FileChannel channel;
+        int users;
+        boolean evicted;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+            users = 0;
+            evicted = false;
+        }
+    }
+
+    private final int maxOpenFiles;
+    private final LinkedHashMap<File, Handle> handles;
+
+    public FileHandleCache() {
+        this(DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * @param maxOpenFiles maximum number of channels kept open
+     */
+    public FileHandleCache(int maxOpenFiles) {
+        if (maxOpenFiles <= 0)
+            throw new IllegalArgumentException("at least one open file is needed");
+        this.maxOpenFiles = maxOpenFiles;
+        handles = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Read data.length bytes from the file, starting at position.
+     *
+     * @throws EOFException if the file ends before data is filled
+     */
+    public void readFully(File f, byte[] data, long position) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Handle h = acquire(f, false);
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    int n = h.channel.read(buf, position + buf.position());
+                    if (n < 0)
+                        throw new EOFException("Read past end of " + f);
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                if (!retry(f, h, e, attempt))
+                    throw e;
+            } finally {
+                release(h);
+            }
+        }
+    }
+
+    /**
+     * Write all of data to the file, starting at position. The file is
+     * created if needed, and grows if position is at or beyond its end.
+     */
+    public void write(File f, byte[] data, long position) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Handle h = acquire(f, true);
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining())
+                    h.channel.write(buf, position + buf.position());
+                return;
+            } catch (ClosedChannelException e) {
+                if (!retry(f, h, e, attempt))
+                    throw e;
+            } finally {
+                release(h);
+            }
+        }
+    }
+
+    /**
+     * Map a region of the file read-only into memory. The mapping stays
+     * valid after the channel it was created from is closed, and shows
+     * writes made through this cache.
+     */
+    public MappedByteBuffer map(File f, long position, long size) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Handle h = acquire(f, false);
+            try {
+                return h.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            } catch (ClosedChannelException e) {
+                if (!retry(f, h, e, attempt))
+                    throw e;
+            } finally {
+                release(h);
+            }
+        }
+    }
+
+    /**
+     * A channel is closed for every thread when one of them is interrupted
+     * during I/O on it. Drop such a channel so that the next access reopens
+     * the file, and tell whether the failed access should be tried again.
+     */
+    private boolean retry(File f, Handle h, ClosedChannelException e, int attempt) {
+        synchronized (this) {
+            File key = f.getAbsoluteFile();
+            if (handles.get(key) == h)
+                handles.remove(key);
+            h.evicted = true;
+        }
+        // the interrupted thread itself gives up, others try once more
+        return !(e instanceof ClosedByInterruptException) && attempt == 0;
+    }
+
+    /**
+     * Close the channel of a file, if one is open. Must be called when a
+     * file is deleted or replaced, or the cache would keep serving the old
+     * one.
+     */
+    public void invalidate(File f) {
+        Handle h;
+        synchronized (this) {
+            h = handles.remove(f.getAbsoluteFile());
+            if (h == null)
+                return;
+            h.evicted = true;
+            if (h.users > 0)
+                return;
+        }
+        closeQuietly(h);
+    }
+
+    /** Close every channel of the cache. */
+    public void closeAll() {
+        List<Handle> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Handle h : handles.values()) {
+                h.evicted = true;
+                if (h.users == 0)
+                    toClose.add(h);
+            }
+            handles.clear();
+        }
+        for (Handle h : toClose)
+            closeQuietly(h);
+    }
+
+    /** @return the number of channels currently open */
+    public synchronized int numOpenFiles() {
+        return handles.size();
+    }
+
+    private Handle acquire(File f, boolean create) throws IOException {
+        File key = f.getAbsoluteFile();
+        List<Handle> toClose = new ArrayList<>();
+        Handle h;
+        synchronized (this) {
+            h = handles.get(key);
+            if (h == null) {
+                h = new Handle(open(key, create));
+                handles.put(key, h);
+                Iterator<Map.Entry<File, Handle>> it = handles.entrySet().iterator();
+                while (handles.size() > maxOpenFiles && it.hasNext()) {
+                    Handle eldest = it.next().getValue();
+                    if (eldest == h)
+                        continue;
+                    it.remove();
+                    eldest.evicted = true;
+                    if (eldest.users == 0)
+                        toClose.add(eldest);
+                }
+            }
+            h.users++;
+        }
+        // close evicted channels outside of the monitor
+        for (Handle c : toClose)
+            closeQuietly(c);
+        return h;
+    }
+
+    private void release(Handle h) {
+        synchronized (this) {
+            h.users--;
+            if (!h.evicted || h.users > 0)
+                return;
+        }
+        closeQuietly(h);
+    }
+
+    private static FileChannel open(File f, boolean create) throws IOException {
+        if (!create && !f.exists())
+            throw new FileNotFoundException(f.toString());
+        try {
+            return new RandomAccessFile(f, "rw").getChannel();
+        } catch (FileNotFoundException e) {
+            // read-only table files can still be scanned
+            if (!f.exists())
+                throw e;
+            return new RandomAccessFile(f, "r").getChannel();
+        }
+    }
+
+    private static void closeQuietly(Handle h) {
+        try {
+            h.channel.close();
+        } catch (IOException e) {
+            // nothing left to do with this channel
+        }
+    }
+}
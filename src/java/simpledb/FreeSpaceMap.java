@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records the number of empty tuple slots of every page of a
+ * HeapFile, so that an insert can go straight to a page with room instead
+ * of locking and inspecting the pages of the file one after the other.
+ * <p>
+ * The map is kept in memory and in a side file next to the table file, with
+ * one two-byte entry per page. Entries in memory are updated as tuples are
+ * inserted and deleted and as their changes commit or roll back; the side
+ * file is updated when a page is written, so that it describes the pages on
+ * disk. The map is loaded on first use and rebuilt from the pages when the
+ * side file is missing or doesn't match the table file.
+ * <p>
+ * Entries are only hints: they are not logged, and an aborted transaction
+ * leaves them stale. Callers must check the page they get once it is locked
+ * and {@link #update} the entry if it was wrong.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int ENTRY_SIZE = 2;
+    private static final int MAX_ENTRY = 0xFFFF;
+
+    private final HeapFile heapFile;
+    private final File file;
+    // empty slots per page, null until loaded
+    private int[] entries;
+    private int numEntries;
+    // page after the one last returned by findPage
+    private int nextSearch;
+
+    /**
+     * @param heapFile the file this map describes
+     */
+    public FreeSpaceMap(HeapFile heapFile) {
+        this.heapFile = heapFile;
+        this.file = sideFile(heapFile.getFile());
+        entries = null;
+        numEntries = 0;
+        nextSearch = 0;
+    }
+
+    /**
+     * @return the side file the map of a table file is stored in
+     */
+    public static File sideFile(File tableFile) {
+        return new File(tableFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Find a page that had empty slots when its entry was last updated,
+     * searching from where the previous search stopped so that concurrent
+     * inserts spread over the free pages.
+     *
+     * @return the page number, or -1 if no page of the file has room
+     */
+    public synchronized int findPage() {
+        load();
+        // pages appended without going through the map
+        int numPages = heapFile.numPages();
+        for (int i = numEntries; i < numPages; i++)
+            set(i, countEmptySlots(i));
+
+        for (int n = 0; n < numEntries; n++) {
+            int pgNo = (nextSearch + n) % numEntries;
+            if (entries[pgNo] > 0) {
+                nextSearch = (pgNo + 1) % numEntries;
+                return pgNo;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Record the number of empty slots of a page in memory.
+     */
+    public synchronized void update(int pgNo, int emptySlots) {
+        load();
+        set(pgNo, emptySlots);
+    }
+
+    /**
+     * @return the number of empty slots recorded for a page, or -1 if the
+     *         page is not in the map
+     */
+    public synchronized int getEmptySlots(int pgNo) {
+        load();
+        return (pgNo < numEntries ? entries[pgNo] : -1);
+    }
+
+    /**
+     * Record in the side file the number of empty slots of a page that was
+     * just written to the table file.
+     */
+    public void pageWritten(int pgNo, int emptySlots) throws IOException {
+        Database.getCatalog().getFileHandles().write(file, encode(emptySlots), (long) pgNo * ENTRY_SIZE);
+    }
+
+    /**
+     * Rebuild the map from the pages of the file, e.g. after recovery has
+     * installed and rolled back page images behind its back. Pages cached
+     * in the buffer pool are counted as cached, others as on disk.
+     */
+    public synchronized void rebuild() throws IOException {
+        int numPages = heapFile.numPages();
+        entries = new int[Math.max(numPages, 16)];
+        numEntries = 0;
+        nextSearch = 0;
+        byte[] data = new byte[numPages * ENTRY_SIZE];
+        for (int i = 0; i < numPages; i++) {
+            set(i, countEmptySlots(i));
+            System.arraycopy(encode(entries[i]), 0, data, i * ENTRY_SIZE, ENTRY_SIZE);
+        }
+        FileHandleCache handles = Database.getCatalog().getFileHandles();
+        handles.invalidate(file);
+        file.delete();
+        handles.write(file, data, 0);
+    }
+
+    private void load() {
+        if (entries != null)
+            return;
+        int numPages = heapFile.numPages();
+        if (file.length() == (long) numPages * ENTRY_SIZE) {
+            byte[] data = new byte[numPages * ENTRY_SIZE];
+            try {
+                Database.getCatalog().getFileHandles().readFully(file, data, 0);
+                entries = new int[Math.max(numPages, 16)];
+                for (int i = 0; i < numPages; i++)
+                    entries[i] = ((data[i * ENTRY_SIZE] & 0xFF) << 8) | (data[i * ENTRY_SIZE + 1] & 0xFF);
+                numEntries = numPages;
+                return;
+            } catch (IOException e) {
+                // fall through and rebuild it
+            }
+        }
+        try {
+            rebuild();
+        } catch (IOException e) {
+            // the side file will be rewritten page by page as pages are flushed
+            if (entries == null)
+                entries = new int[16];
+        }
+    }
+
+    private void set(int pgNo, int emptySlots) {
+        if (pgNo >= entries.length)
+            entries = Arrays.copyOf(entries, Math.max(pgNo + 1, entries.length * 2));
+        // pages appended since the last known one
+        for (int i = numEntries; i < pgNo; i++)
+            entries[i] = Math.min(countEmptySlots(i), MAX_ENTRY);
+        entries[pgNo] = Math.min(emptySlots, MAX_ENTRY);
+        numEntries = Math.max(numEntries, pgNo + 1);
+    }
+
+    private int countEmptySlots(int pgNo) {
+        PageId pid = new HeapPageId(heapFile.getId(), pgNo);
+        Page p = Database.getBufferPool().peekPage(pid);
+        try {
+            if (p == null)
+                p = heapFile.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+        return ((HeapPage) p).getNumEmptySlots();
+    }
+
+    private static byte[] encode(int emptySlots) {
+        int v = Math.min(emptySlots, MAX_ENTRY);
+        return new byte[] {(byte) (v >>> 8), (byte) v};
+    }
+}
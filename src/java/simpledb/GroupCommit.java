@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GroupCommit makes the commit records of concurrent transactions durable
+ * with a single force of the log. A committing transaction appends its commit
+ * record and waits on a future; a log-flusher thread takes the waiting
+ * commits in batches, forces the log once per batch and completes their
+ * futures.
+ * <p>
+ * After taking the first commit of a batch, the flusher waits up to the max
+ * delay for more commits, unless the batch is full already. Commits that
+ * arrive while a force is running form the next batch even without a delay.
+ * The flusher counts the forces and the commits they made durable.
+ *
+ * @Threadsafe
+ */
+public class GroupCommit {
+
+    /** Default time the flusher waits for more commits before forcing the log. */
+    public static final long DEFAULT_MAX_DELAY_MICROS = 0;
+
+    /** Default maximum number of commits made durable by one force. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private final LogFile log;
+    private volatile long maxDelayMicros;
+    private volatile int maxBatchSize;
+    private final ThreadPoolExecutor executor;
+    // commits whose records were appended, waiting for the next force
+    private final LinkedBlockingQueue<CompletableFuture<Void>> waiting;
+    // whether a flush task is queued or running
+    private final AtomicBoolean flushing;
+    private final AtomicLong forces;
+    private final AtomicLong commits;
+
+    GroupCommit(LogFile log) {
+        this.log = log;
+        this.maxDelayMicros = DEFAULT_MAX_DELAY_MICROS;
+        this.maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        waiting = new LinkedBlockingQueue<CompletableFuture<Void>>();
+        flushing = new AtomicBoolean(false);
+        forces = new AtomicLong(0);
+        commits = new AtomicLong(0);
+        executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-log-flusher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // don't keep a thread around for log files that are not written any more
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the time the flusher waits for more commits before forcing the log, in microseconds */
+    public long getMaxDelayMicros() {
+        return maxDelayMicros;
+    }
+
+    /**
+     * Set the time the flusher waits for more commits after taking the first
+     * commit of a batch. A longer delay gives bigger batches, but holds up
+     * every commit of the batch for that long.
+     * @param micros the delay in microseconds; 0 forces the log right away
+     */
+    public void setMaxDelayMicros(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("max delay must not be negative");
+        this.maxDelayMicros = micros;
+    }
+
+    /** @return the maximum number of commits made durable by one force */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of commits made durable by one force. The
+     * flusher stops waiting for more commits once a batch is full.
+     * @param size the maximum batch size, at least 1
+     */
+    public void setMaxBatchSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("max batch size must be at least 1");
+        this.maxBatchSize = size;
+    }
+
+    /** @return the number of times the flusher forced the log */
+    public long getForces() {
+        return forces.get();
+    }
+
+    /** @return the number of commits made durable by the flusher */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /** @return the average number of commits made durable per force, 0 if there was none */
+    public double getCommitsPerForce() {
+        long f = forces.get();
+        return f == 0 ? 0 : (double) commits.get() / f;
+    }
+
+    /** Reset the force and commit counters. */
+    public void resetCounters() {
+        forces.set(0);
+        commits.set(0);
+    }
+
+    /**
+     * Wait until the log is forced to disk past a commit record that was
+     * appended by the calling thread. Must not be called with the monitor of
+     * the log file held, or the commits of other transactions can't join the
+     * batch.
+     *
+     * @throws IOException if forcing the log failed
+     */
+    void awaitForce() throws IOException {
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        waiting.add(done);
+        if (flushing.compareAndSet(false, true))
+            executor.execute(new FlushTask());
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private class FlushTask implements Runnable {
+        public void run() {
+            while (true) {
+                List<CompletableFuture<Void>> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    flushing.set(false);
+                    // a commit queued before the flag was cleared found it set
+                    if (waiting.isEmpty() || !flushing.compareAndSet(false, true))
+                        return;
+                    continue;
+                }
+                try {
+                    log.forceChannel();
+                    forces.incrementAndGet();
+                    commits.addAndGet(batch.size());
+                    for (CompletableFuture<Void> f : batch)
+                        f.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    for (CompletableFuture<Void> f : batch)
+                        f.completeExceptionally(e);
+                }
+            }
+        }
+
+        // the waiting commits, up to the max batch size, after waiting up to
+        // the max delay for the batch to fill
+        private List<CompletableFuture<Void>> nextBatch() {
+            List<CompletableFuture<Void>> batch = new ArrayList<CompletableFuture<Void>>();
+            CompletableFuture<Void> first = waiting.poll();
+            if (first == null)
+                return batch;
+            batch.add(first);
+            int size = maxBatchSize;
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+            try {
+                while (batch.size() < size) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    CompletableFuture<Void> f = waiting.poll(left, TimeUnit.NANOSECONDS);
+                    if (f == null)
+                        break;
+                    batch.add(f);
+                }
+            } catch (InterruptedException e) {
+                // force what we have
+            }
+            waiting.drainTo(batch, size - batch.size());
+            return batch;
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package simpledb;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -31,16 +33,71 @@ public class HeapFile implements DbFile {
     private File f;
     private TupleDesc td;
     private int ID;
-    private BufferPool bufferPool;
     private DbLogger logger = new DbLogger(getClass().getName(), getClass().getName() + ".log", false);
     private Semaphore synchronizer = new Semaphore(1, true);
 
+    /** Maximum number of pages a bulk insert appends to the file at once. */
+    public static final int APPEND_BATCH_PAGES = 16;
+
+    /** Size in bytes of the segments a memory-mapped heap file is mapped in. */
+    public static final int MMAP_SEGMENT_SIZE = 1 << 22;
+
+    private final boolean memoryMapped;
+    // read-only mappings of the file, one per segment, created on first use
+    private MappedByteBuffer[] segments;
+    private final FreeSpaceMap freeSpace;
+    private final PageLsnMap pageLsns;
+
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            if true, the bytes of a page are copied out of read-only
+     *            memory mappings of the file instead of being read through
+     *            its channel, which saves a system call per page read. Meant
+     *            for read-mostly tables; writes still go through the file
+     *            and are visible in the mappings.
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.f = f;
         this.td = td;
+        this.memoryMapped = memoryMapped;
         ID = f.getAbsoluteFile().hashCode();
-        bufferPool = Database.getBufferPool();
+        // the file may have been replaced since a channel was last opened on it
+        Database.getCatalog().getFileHandles().invalidate(f);
+        Database.getCatalog().getFileHandles().invalidate(FreeSpaceMap.sideFile(f));
+        Database.getCatalog().getFileHandles().invalidate(PageLsnMap.sideFile(f));
+        freeSpace = new FreeSpaceMap(this);
+        pageLsns = new PageLsnMap(f);
+    }
+
+    /**
+     * @return the map of the empty slots of the pages of this file
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * @return the map of the LSNs of the pages of this file on disk
+     */
+    public PageLsnMap getPageLsnMap() {
+        return pageLsns;
+    }
+
+    /**
+     * @return true if pages of this file are read from memory mappings
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -84,35 +141,59 @@ public class HeapFile implements DbFile {
         int pageSize = BufferPool.getPageSize();
         int offset = pageSize * pid.getPageNumber();
 
-        byte[] pageData = new byte[pageSize];
-        try {
-            RandomAccessFile f = new RandomAccessFile(this.f,"r");
-            if (offset + pageSize > f.length()) {
-                System.err.println("Page offset exceeds max size, error!");
-                System.exit(1);
-            }
-            f.seek(offset);
-            f.readFully(pageData);
-            f.close();
-        } catch (FileNotFoundException e) {
-            System.err.println("FileNotFoundException: " + e.getMessage());
-            throw new IllegalArgumentException();
-        } catch (IOException e) {
-            System.err.println("Caught IOException: " + e.getMessage());
-            throw new IllegalArgumentException();
-        }
+        if (offset + pageSize > f.length())
+            throw new IllegalArgumentException("Page " + pid + " is beyond the end of " + f);
 
         HeapPage readPage;
         try {
-            readPage = new HeapPage((HeapPageId) pid, pageData);
+            ByteBuffer mapped = (memoryMapped ? mappedPage(offset, pageSize) : null);
+            if (mapped != null) {
+                readPage = new HeapPage((HeapPageId) pid, mapped);
+            } else {
+                byte[] pageData = new byte[pageSize];
+                Database.getCatalog().getFileHandles().readFully(f, pageData, offset);
+                readPage = new HeapPage((HeapPageId) pid, pageData);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Creating new page failed for file: " + f.toString());
-            return null;
+            throw new IllegalArgumentException(e);
         }
         return readPage;
     }
 
+    /**
+     * Returns a view of the mapping holding the page at offset, positioned at
+     * the start of the page. A segment is mapped up to the end of the file;
+     * if the file has grown past the end of the mapping since, the segment
+     * is mapped again.
+     *
+     * @return the view, or null if the page can't be read from a mapping
+     *         and must be read from the file
+     */
+    private synchronized ByteBuffer mappedPage(long offset, int pageSize) {
+        int seg = (int) (offset / MMAP_SEGMENT_SIZE);
+        long segStart = (long) seg * MMAP_SEGMENT_SIZE;
+        if (offset + pageSize > segStart + MMAP_SEGMENT_SIZE)
+            return null; // the page straddles two segments
+        if (segments == null || seg >= segments.length)
+            segments = (segments == null ? new MappedByteBuffer[seg + 1] : Arrays.copyOf(segments, seg + 1));
+        MappedByteBuffer segment = segments[seg];
+        if (segment == null || offset + pageSize > segStart + segment.capacity()) {
+            long size = Math.min(MMAP_SEGMENT_SIZE, f.length() - segStart);
+            try {
+                segment = Database.getCatalog().getFileHandles().map(f, segStart, size);
+            } catch (IOException e) {
+                logger.log("Mapping " + f + " failed, reading it instead: " + e.getMessage());
+                return null;
+            }
+            segments[seg] = segment;
+        }
+        ByteBuffer view = segment.duplicate();
+        view.position((int) (offset - segStart));
+        return view;
+    }
+
     private void printByteArray(byte[] data, int len) {
         if(len <= 0)
             len = data.length;
@@ -130,13 +211,12 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile raf = new RandomAccessFile(this.f, "rw");
         int offset = BufferPool.getPageSize() * page.getId().getPageNumber();
-        raf.seek(offset);
         byte[] newHeapPageData = page.getPageData();
         // the modified new page is already written to disk. So no need to mark it as dirty
-        raf.write(newHeapPageData, 0, BufferPool.getPageSize());
-        raf.close();
+        Database.getCatalog().getFileHandles().write(this.f, newHeapPageData, offset);
+        freeSpace.pageWritten(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots());
+        pageLsns.pageWritten(page.getId().getPageNumber(), page.getLSN());
     }
 
     /**
@@ -151,27 +231,47 @@ public class HeapFile implements DbFile {
         return (int) (totalBytes / BufferPool.getPageSize());
     }
 
-    private HeapPage getFreePage(TransactionId tid) throws TransactionAbortedException, DbException {
+    /**
+     * Find a page with an empty slot through the free space map, lock it in
+     * TUPLE_WRITE mode and insert t into it. A page the map wrongly thought
+     * had room, or whose empty slots are all held by deletes other
+     * transactions haven't committed, is unlocked again and its entry
+     * cleared until those deletes commit.
+     *
+     * @return the page t was inserted into, or null if no page has room
+     */
+    private HeapPage insertIntoFreePage(TransactionId tid, Tuple t)
+            throws TransactionAbortedException, DbException {
         logger.log("Trying to find a free page for transaction " + tid);
-        int totalPageNum = this.numPages();
-        logger.log("totalPageNum: " + totalPageNum);
-        if(totalPageNum == 0){
-            logger.log("no page yet");
-            return null;
-        }
-        for (int i = 0; i < totalPageNum; i++) {
-            logger.log("i: " + i);
-            PageId pid = new HeapPageId(this.getId(), i);
+        int pgNo;
+        while ((pgNo = freeSpace.findPage()) >= 0) {
+            PageId pid = new HeapPageId(this.getId(), pgNo);
             logger.log("current pageID " + pid);
-            HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (hpage.getNumEmptySlots() > 0)
+            HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.TUPLE_WRITE);
+            if (insertLatched(hpage, t, tid)) {
+                freeSpace.update(pgNo, hpage.getNumEmptySlots());
                 return hpage;
-            else // otherwise release the lock on the page since the page is not going to be used
+            }
+            // otherwise release the lock on the page since the page is not going to be used
+            freeSpace.update(pgNo, 0);
+            if (hpage.isDirty() == null)
                 Database.getBufferPool().releasePage(tid, hpage.getId());
         }
+        logger.log("no page with room");
         return null;
     }
 
+    // insert into a page other transactions may be changing as well, under
+    // its latch; the TUPLE_WRITE lock doesn't keep them off the page
+    private static boolean insertLatched(HeapPage p, Tuple t, TransactionId tid) throws DbException {
+        p.getLatch().acquireExclusive();
+        try {
+            return p.insertTuple(t, tid);
+        } finally {
+            p.getLatch().releaseExclusive();
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
@@ -179,35 +279,103 @@ public class HeapFile implements DbFile {
         logger.log("In HeapFile insertTuple() ");
         logger.log("tid: " + tid);
         logger.log("tuple to insert " + t);
-        HeapPage p = getFreePage(tid);
-        if (p != null) {
-            logger.log("found available page to insert");
-            logger.log("insert to page: " + p.getId());
-            // check the
-            RecordId rid = new RecordId(p.getId(), -1);
-            t.setRecordId(rid);
-            p.insertTuple(t);
-            p.markDirty(true, tid);
-            logger.log("end of insertTUple()");
-            return new ArrayList<> (Arrays.asList(p));
+        // no tuple lock is needed on an inserted tuple: nobody else can see
+        // it before tid commits, since reading the page takes a lock that
+        // conflicts with TUPLE_WRITE
+        HeapPage p = insertIntoFreePage(tid, t);
+        if (p == null) {
+            // no empty pages found, so append a new one; other transactions
+            // may fill it before t is inserted
+            do {
+                p = appendPages(tid, 1).get(0);
+            } while (!insertLatched(p, t, tid));
+            freeSpace.update(p.getId().getPageNumber(), p.getNumEmptySlots());
         }
-        // no empty pages found, so create a new one
-        int newPageNum = this.numPages();
-        synchronizerOn();
-        HeapPageId newHeapPageId = new HeapPageId(this.getId(), newPageNum);
+        logger.log("end of insertTUple() on page " + p.getId());
+        return new ArrayList<> (Arrays.asList(p));
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        LinkedHashSet<Page> modified = new LinkedHashSet<>();
+        int slotsPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        // tuples read but not inserted yet, and new pages not filled yet
+        ArrayDeque<Tuple> pending = new ArrayDeque<>();
+        ArrayDeque<HeapPage> appended = new ArrayDeque<>();
+        boolean noRoom = false;
+        HeapPage p = null;
+        while (!pending.isEmpty() || tuples.hasNext()) {
+            if (pending.isEmpty())
+                pending.add(tuples.next());
+            Tuple t = pending.peek();
+            if (p == null || !insertLatched(p, t, tid)) {
+                if (p != null)
+                    freeSpace.update(p.getId().getPageNumber(), p.getNumEmptySlots());
+                // fill the pages that have room first, then new pages
+                p = (noRoom ? null : insertIntoFreePage(tid, t));
+                if (p == null) {
+                    noRoom = true;
+                    if (appended.isEmpty()) {
+                        while (tuples.hasNext() && pending.size() < APPEND_BATCH_PAGES * slotsPerPage)
+                            pending.add(tuples.next());
+                        appended.addAll(appendPages(tid, (pending.size() + slotsPerPage - 1) / slotsPerPage));
+                    }
+                    p = appended.poll();
+                    continue;
+                }
+            }
+            pending.poll();
+            modified.add(p);
+        }
+        if (p != null)
+            freeSpace.update(p.getId().getPageNumber(), p.getNumEmptySlots());
+        return new ArrayList<>(modified);
+    }
+
+    /**
+     * Extend the file by numPages empty pages with a single write. The new
+     * pages are locked in TUPLE_WRITE mode and put in the buffer pool
+     * before the file grows and the free space map lists them, so that
+     * transactions inserting at the same time share them and nobody reads
+     * them from disk. The table lock is taken first: waiting for it while
+     * holding the synchronizer would hold up every other appender without
+     * the deadlock detector knowing.
+     *
+     * @return the new pages
+     */
+    private ArrayList<HeapPage> appendPages(TransactionId tid, int numPages)
+            throws DbException, IOException, TransactionAbortedException {
+        if ((BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1) == 0)
+            throw new DbException("Tuples of " + f + " don't fit on a page");
+        ArrayList<HeapPage> pages = new ArrayList<>();
         BufferPool bpool = Database.getBufferPool();
+        bpool.lockTable(tid, getId(), Permissions.TUPLE_WRITE);
+        synchronizerOn();
         try {
-            p = new HeapPage(newHeapPageId, HeapPage.createEmptyPageData());
-            p.insertTuple(t);
-            logger.log("newHeapPage ID: " + p.getId());
-            writePage(p);
-            bpool.lockPage(tid, newHeapPageId, Permissions.READ_WRITE);
-            bpool.putPage(newHeapPageId.hashCode(), p);
+            int firstPageNum = this.numPages();
+            int pageSize = BufferPool.getPageSize();
+            for (int i = 0; i < numPages; i++) {
+                HeapPageId pid = new HeapPageId(this.getId(), firstPageNum + i);
+                bpool.lockPage(tid, pid, Permissions.TUPLE_WRITE);
+                pages.add((HeapPage) bpool.putPageIfAbsent(pid,
+                        new HeapPage(pid, HeapPage.createEmptyPageData())));
+            }
+            try {
+                Database.getCatalog().getFileHandles().write(f, new byte[numPages * pageSize],
+                        (long) firstPageNum * pageSize);
+            } catch (IOException e) {
+                for (HeapPage p : pages)
+                    bpool.discardPage(p.getId());
+                throw e;
+            }
+            for (HeapPage p : pages)
+                freeSpace.update(p.getId().getPageNumber(), p.getNumEmptySlots());
         } finally {
             synchronizerOff();
         }
-        logger.log("end of insertTUple()");
-        return new ArrayList<> (Arrays.asList());
+        logger.log("appended " + pages.size() + " pages");
+        return pages;
     }
 
     private void synchronizerOn(){
@@ -229,16 +397,28 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         PageId pid = t.getRecordId().getPageId();
-        Page p = bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
-        ((HeapPage) p).deleteTuple(t);
-        p.markDirty(true, tid);
+        BufferPool bpool = Database.getBufferPool();
+        HeapPage p = (HeapPage) bpool.getPage(tid, pid, Permissions.TUPLE_WRITE);
+        bpool.lockTuple(tid, t.getRecordId());
+        p.getLatch().acquireExclusive();
+        try {
+            p.deleteTuple(t, tid);
+        } finally {
+            p.getLatch().releaseExclusive();
+        }
+        freeSpace.update(pid.getPageNumber(), p.getNumEmptySlots());
         return new ArrayList<Page> (Arrays.asList(p));
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new HeapFileIterator(this, tid, ring);
     }
 
 }
@@ -252,15 +432,23 @@ class HeapFileIterator extends AbstractDbFileIterator {
     private int totalPageNum;
     private HeapPage currPage;
     private int currPageNum;
+    private BufferRing ring;
+    // read-ahead state: the last page read, the length of the current run of
+    // consecutive pages and the last page handed to the prefetcher
+    private int lastPageNum;
+    private int sequentialRun;
+    private int prefetchedUpTo;
 
-    HeapFileIterator(HeapFile heapFile, TransactionId tid){
+    HeapFileIterator(HeapFile heapFile, TransactionId tid, BufferRing ring){
         this.heapFile = heapFile;
         this.tid = tid;
+        this.ring = ring;
         totalPageNum = this.heapFile.numPages();
         pageIterator = null;
         bufferPool = Database.getBufferPool();
         currPage = null;
         currPageNum = 0;
+        resetReadAhead();
     }
 
     /**
@@ -286,9 +474,8 @@ class HeapFileIterator extends AbstractDbFileIterator {
             t = pageIterator.next();
 
         } else {
-            // release the lock on the current page before get a new page from the buffer pool
-            if(currPage.isDirty() == null)
-                Database.getBufferPool().releasePage(tid, currPage.getId());
+            // the lock on the current page is kept until tid completes: another
+            // transaction changing the page in between would make tid's reads stale
             if(!getIteratorForNextPage()) // no next tuple to read (maybe)
                 return null;
             t = (pageIterator.hasNext() ? pageIterator.next() : null);
@@ -300,18 +487,42 @@ class HeapFileIterator extends AbstractDbFileIterator {
         if(currPageNum >= totalPageNum)
             return false;
         HeapPageId pageToReadID = new HeapPageId(heapFile.getId(), currPageNum);
-        currPage = (HeapPage) bufferPool.getPage(tid, pageToReadID, Permissions.READ_ONLY);
+        readAhead(currPageNum);
+        currPage = (HeapPage) bufferPool.getPage(tid, pageToReadID, Permissions.READ_ONLY, ring);
         pageIterator = currPage.iterator();
         currPageNum++;
         return true;
     }
 
+    /**
+     * Ask the prefetcher for the pages following pageNum once the scan has
+     * read enough consecutive pages. Scans through a buffer ring are not
+     * read ahead, since that would fill the shared pool they stay out of.
+     */
+    private void readAhead(int pageNum) {
+        sequentialRun = (pageNum == lastPageNum + 1 ? sequentialRun + 1 : 1);
+        lastPageNum = pageNum;
+        PagePrefetcher prefetcher = bufferPool.getPrefetcher();
+        if (ring != null || sequentialRun < PagePrefetcher.SEQUENTIAL_THRESHOLD)
+            return;
+        int last = Math.min(pageNum + prefetcher.getDepth(), totalPageNum - 1);
+        for (int i = Math.max(prefetchedUpTo + 1, pageNum + 1); i <= last; i++) {
+            prefetcher.prefetch(new HeapPageId(heapFile.getId(), i));
+            prefetchedUpTo = i;
+        }
+    }
+
+    private void resetReadAhead() {
+        lastPageNum = -1;
+        sequentialRun = 0;
+        prefetchedUpTo = -1;
+    }
+
     public void close() {
         // Ensures that a future call to next() will fail
         // next = null;
-        if(currPage.isDirty() == null)
-            Database.getBufferPool().releasePage(tid, currPage.getId());
         currPageNum = 0; // reset
+        resetReadAhead();
         pageIterator = null;
         super.close();
     }
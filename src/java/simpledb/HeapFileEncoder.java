@@ -1,7 +1,19 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -76,10 +88,12 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile. The input is parsed by as many threads as there are
+    * processors.
     *
     * @see HeapPage
     * @see HeapFile
+    * @see #convert(File, File, int, int, Type[], char, int)
     * @param inFile The input file to read data from
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
@@ -90,137 +104,281 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Size in bytes of the blocks the input of a conversion is split into. */
+  public static final int BLOCK_SIZE = 1 << 22;
 
+  // number of pages written to the output file at once
+  private static final int WRITE_PAGES = 256;
+
+   /** Convert the specified input text file into a binary page file, using
+    * several threads. <br>
+    * The input is read sequentially in blocks of about BLOCK_SIZE bytes that
+    * end at a line boundary. The lines of each block are parsed into records
+    * by a pool of threads, while this thread packs the parsed records into
+    * pages in input order and writes them out many pages at a time. The
+    * output is the same as the one of a single-threaded conversion, and
+    * only a few blocks are held in memory at any time.
+    *
+    * @param inFile The input file to read data from
+    * @param outFile The output file to write data to
+    * @param npagebytes The number of bytes per page in the output file
+    * @param numFields the number of fields in each input line/output tuple
+    * @param typeAr the types of the fields
+    * @param fieldSeparator the character separating the fields of a line
+    * @param numThreads the number of threads parsing the input
+    * @throws IOException if the input/output file can't be opened or a
+    *   malformed input line is encountered
+    */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int numThreads)
+      throws IOException {
+      if (numThreads <= 0)
+          throw new IllegalArgumentException("at least one thread is needed");
+      Type[] types = Arrays.copyOf(typeAr, numFields);
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+          nrecbytes += types[i].getLen();
       }
       int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+      // the free space map of a previous version of the file is stale
+      FreeSpaceMap.sideFile(outFile).delete();
+
+      ExecutorService parsers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "simpledb-encoder");
+              t.setDaemon(true);
+              return t;
+          }
+      });
+      try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE,
+                   StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          PageWriter writer = new PageWriter(out, npagebytes, nrecbytes, nrecords);
+          // parsed blocks in input order; a few per thread keep every thread busy
+          ArrayDeque<Future<ParsedBlock>> inFlight = new ArrayDeque<Future<ParsedBlock>>();
+          byte[] carry = new byte[0];
+          boolean eof = false;
+          while (!eof) {
+              byte[] block = Arrays.copyOf(carry, carry.length + BLOCK_SIZE);
+              ByteBuffer dst = ByteBuffer.wrap(block, carry.length, BLOCK_SIZE);
+              while (dst.hasRemaining() && !eof)
+                  eof = in.read(dst) < 0;
+              int len = dst.position();
+              // hand out whole lines only, the last one continues in the next block
+              int end = len;
+              if (!eof) {
+                  while (end > 0 && block[end - 1] != '\n')
+                      end--;
+              }
+              carry = Arrays.copyOfRange(block, end, len);
+              if (end == 0)
+                  continue; // a line longer than a block
+              inFlight.add(parsers.submit(new BlockParser(block, end, types, fieldSeparator, nrecbytes)));
+              while (inFlight.size() > 2 * numThreads)
+                  writer.add(next(inFlight));
+          }
+          while (!inFlight.isEmpty())
+              writer.add(next(inFlight));
+          writer.finish();
+      } finally {
+          parsers.shutdownNow();
+      }
+  }
+
+  private static ParsedBlock next(ArrayDeque<Future<ParsedBlock>> inFlight) throws IOException {
+      try {
+          return inFlight.poll().get();
+      } catch (InterruptedException e) {
+          throw new InterruptedIOException("conversion interrupted");
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException)
+              throw (IOException) e.getCause();
+          throw new IOException(e.getCause());
+      }
+  }
+
+  /** The records parsed from a block of input, back to back. */
+  private static class ParsedBlock {
+      final byte[] records;
+      final int count;
+
+      ParsedBlock(byte[] records, int count) {
+          this.records = records;
+          this.count = count;
+      }
+  }
+
+  /**
+   * Parses the lines of a block into records in the format of a HeapPage
+   * slot. Empty lines and carriage returns are skipped, and fields are
+   * trimmed of surrounding blanks.
+   */
+  private static class BlockParser implements Callable<ParsedBlock> {
+      private final byte[] data;
+      private final int len;
+      private final Type[] types;
+      private final char separator;
+      private final int nrecbytes;
+
+      BlockParser(byte[] data, int len, Type[] types, char separator, int nrecbytes) {
+          this.data = data;
+          this.len = len;
+          this.types = types;
+          this.separator = separator;
+          this.nrecbytes = nrecbytes;
+      }
+
+      public ParsedBlock call() throws IOException {
+          ByteBuffer records = ByteBuffer.allocate(Math.max(nrecbytes, len / 2));
+          int count = 0;
+          int lineStart = 0;
+          while (lineStart < len) {
+              int lineEnd = lineStart;
+              while (lineEnd < len && data[lineEnd] != '\n')
+                  lineEnd++;
+              int end = lineEnd;
+              while (end > lineStart && data[end - 1] == '\r')
+                  end--;
+              if (end > lineStart) {
+                  if (records.remaining() < nrecbytes) {
+                      ByteBuffer grown = ByteBuffer.allocate(records.capacity() * 2);
+                      records.flip();
+                      grown.put(records);
+                      records = grown;
+                  }
+                  parseLine(lineStart, end, records);
+                  count++;
+              }
+              lineStart = lineEnd + 1;
+          }
+          return new ParsedBlock(records.array(), count);
+      }
+
+      private void parseLine(int start, int end, ByteBuffer out) throws IOException {
+          int fieldStart = start;
+          for (int f = 0; f < types.length; f++) {
+              int fieldEnd = fieldStart;
+              while (fieldEnd < end && data[fieldEnd] != separator)
+                  fieldEnd++;
+              if (fieldEnd == end && f < types.length - 1 || fieldEnd < end && f == types.length - 1)
+                  throw malformed(start, end);
+              // trim
+              int s = fieldStart, e = fieldEnd;
+              while (s < e && isBlank(data[s]))
+                  s++;
+              while (e > s && isBlank(data[e - 1]))
+                  e--;
+              if (types[f] == Type.INT_TYPE) {
+                  out.putInt(parseInt(s, e, start, end));
+              } else {
+                  int n = Math.min(e - s, Type.STRING_LEN);
+                  out.putInt(n);
+                  out.put(data, s, n);
+                  for (int i = n; i < Type.STRING_LEN; i++)
+                      out.put((byte) 0);
+              }
+              fieldStart = fieldEnd + 1;
+          }
+      }
+
+      private int parseInt(int s, int e, int lineStart, int lineEnd) throws IOException {
+          boolean negative = (s < e && (data[s] == '-' || data[s] == '+'));
+          int i = (negative ? s + 1 : s);
+          negative = negative && data[s] == '-';
+          if (i == e || e - i > 10)
+              throw malformed(lineStart, lineEnd);
+          long v = 0;
+          for (; i < e; i++) {
+              if (data[i] < '0' || data[i] > '9')
+                  throw malformed(lineStart, lineEnd);
+              v = v * 10 + (data[i] - '0');
+          }
+          v = (negative ? -v : v);
+          if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+              throw malformed(lineStart, lineEnd);
+          return (int) v;
+      }
+
+      private static boolean isBlank(byte b) {
+          return b == ' ' || b == '\t' || b == '\r';
+      }
+
+      private IOException malformed(int start, int end) {
+          return new IOException("BAD LINE : " + new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+      }
+  }
+
+  /**
+   * Packs records into pages, sets the header bits of the slots in use and
+   * writes the pages out WRITE_PAGES at a time.
+   */
+  private static class PageWriter {
+      private final FileChannel out;
+      private final int npagebytes;
+      private final int nrecbytes;
+      private final int nrecords;
+      private final int nheaderbytes;
+      private final ByteBuffer pages;
+      private int recordcount;
+      private int npages;
+
+      PageWriter(FileChannel out, int npagebytes, int nrecbytes, int nrecords) {
+          this.out = out;
+          this.npagebytes = npagebytes;
+          this.nrecbytes = nrecbytes;
+          this.nrecords = nrecords;
+          this.nheaderbytes = (nrecords + 7) / 8;
+          pages = ByteBuffer.allocate(WRITE_PAGES * npagebytes);
+          recordcount = 0;
+          npages = 0;
+      }
+
+      void add(ParsedBlock block) throws IOException {
+          for (int r = 0; r < block.count; r++) {
+              int pageStart = pages.position();
+              pages.position(pageStart + nheaderbytes + recordcount * nrecbytes);
+              pages.put(block.records, r * nrecbytes, nrecbytes);
+              pages.position(pageStart);
+              if (++recordcount == nrecords)
+                  endPage();
+          }
+      }
+
+      /**
+       * Write out the last page if it has records on it. However, if the
+       * file is empty, do write an empty page.
+       */
+      void finish() throws IOException {
+          if (recordcount > 0 || npages == 0)
+              endPage();
+          flush();
+      }
+
+      private void endPage() throws IOException {
+          int pageStart = pages.position();
+          for (int i = 0; i < nheaderbytes; i++) {
+              int used = Math.min(Math.max(recordcount - i * 8, 0), 8);
+              pages.put(pageStart + i, (byte) ((1 << used) - 1));
+          }
+          // pad the rest of the page with zeroes
+          for (int i = nheaderbytes + recordcount * nrecbytes; i < npagebytes; i++)
+              pages.put(pageStart + i, (byte) 0);
+          pages.position(pageStart + npagebytes);
+          recordcount = 0;
+          npages++;
+          if (!pages.hasRemaining())
+              flush();
+      }
+
+      private void flush() throws IOException {
+          pages.flip();
+          while (pages.hasRemaining())
+              out.write(pages);
+          pages.clear();
+      }
   }
 }
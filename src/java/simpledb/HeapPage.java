@@ -3,9 +3,23 @@ package simpledb;
 import java.util.*;
 import java.io.*;
 import java.lang.Math;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the raw bytes of the page rather than decoded tuples.
+ * A Tuple is only built when an iterator reaches an occupied slot, with its
+ * fields read straight from the page bytes, and inserted tuples are
+ * serialized into their slot right away.
+ * <p>
+ * Transactions holding the page in {@link Permissions#TUPLE_WRITE} mode
+ * insert and delete tuples at the same time through the methods taking a
+ * TransactionId. Callers hold the latch of the page for the duration of
+ * the physical change, see {@link #getLatch}, and the page remembers the change
+ * so that each transaction can be committed or rolled back on its own
+ * without touching the changes of the others.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,16 +29,41 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    // the page image: the header bytes followed by the tuple slots
+    final byte data[];
+    final ByteBuffer buf;
+    final int headerSize;
     final int numSlots;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     private int emptySlotNum;
-    private boolean isPageDirty;
-    private TransactionId lastDirtiedTransaction;
+    // read without the latch
+    private volatile boolean isPageDirty;
+    private volatile TransactionId lastDirtiedTransaction;
     private DbLogger logger = new DbLogger(getClass().getName(), getClass().getName() + ".log", false);
+
+    // an uncommitted change of one slot made under a TUPLE_WRITE lock
+    private static class TupleChange {
+        final TransactionId tid;
+        final int slot;
+        // the bytes of the deleted tuple, or null if the tuple was inserted
+        final byte[] deleted;
+
+        TupleChange(TransactionId tid, int slot, byte[] deleted) {
+            this.tid = tid;
+            this.slot = slot;
+            this.deleted = deleted;
+        }
+    }
+
+    // uncommitted tuple changes, oldest first; guarded by the latch
+    private final List<TupleChange> tupleChanges = new ArrayList<>();
+    // size of tupleChanges, for reading without the latch
+    private volatile int numTupleChanges = 0;
+    private final PageLatch latch = new PageLatch();
+    private volatile long lsn;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -43,32 +82,52 @@ public class HeapPage implements Page {
      */
     // when a HeapPage is created, its data are given in an array
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the bytes of the page from the
+     * buffer's position on, e.g. a view of a memory-mapped table file. The
+     * format is the one described above. The page bytes are copied; the
+     * buffer is neither modified nor kept by the page.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyPage(data), null);
+    }
+
+    // a page owning the array data, whose before image is oldData, or a
+    // copy of data if oldData is null; before images are never modified,
+    // so pages may share them
+    private HeapPage(HeapPageId id, byte[] data, byte[] oldData) {
         logger.log("pid: " + id.toString());
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
+        this.headerSize = getHeaderSize();
+        this.data = data;
+        this.buf = ByteBuffer.wrap(this.data);
+
         this.emptySlotNum = 0;
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++) {
-                tuples[i] = readNextTuple(dis, i);
-                if (!isSlotUsed(i))
-                    this.emptySlotNum++;
-            }
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i))
+                this.emptySlotNum++;
         }
-        dis.close();
         isPageDirty = false;
         lastDirtiedTransaction = null;
-        setBeforeImage();
+        if (oldData == null)
+            setBeforeImage();
+        else
+            this.oldData = oldData;
+    }
+
+    private static byte[] copyPage(ByteBuffer data) throws EOFException {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        try {
+            data.duplicate().get(copy);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("page data is shorter than a page");
+        }
+        return copy;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -93,28 +152,33 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        byte[] oldDataRef = null;
+        synchronized(oldDataLock)
+        {
+            oldDataRef = oldData;
         }
-        return null;
+        return new HeapPage(pid, oldDataRef.clone(), oldDataRef);
     }
     
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data.clone();
         }
     }
 
+    public PageLatch getLatch() {
+        return latch;
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -123,35 +187,37 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the index in data of the first byte of a slot */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in a slot of the page.
+     *
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        if (!isSlotUsed(slotId))
             return null;
-        }
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        int offset = slotOffset(slotId);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis); // data is in the Field
+                Type type = td.getFieldType(j);
+                Field f = type.parse(buf, offset); // data is in the Field
                 t.setField(j, f);
+                offset += type.getLen();
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
+        } catch (IndexOutOfBoundsException e) {
+            throw new NoSuchElementException("error reading tuple");
         }
 
         return t;
@@ -169,64 +235,22 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
+        return data.clone();
+    }
 
-            // non-empty slot
+    /**
+     * Serialize the fields of a tuple into a slot of the page.
+     */
+    private void writeTuple(Tuple t, int slotId) throws DbException {
+        int offset = slotOffset(slotId);
+        try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                t.getField(j).serialize(buf, offset);
+                offset += td.getFieldType(j).getLen();
             }
+        } catch (IndexOutOfBoundsException e) {
+            throw new DbException("couldn't serialize tuple: " + e.getMessage());
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -260,7 +284,7 @@ public class HeapPage implements Page {
         if(!isSlotUsed(tupNum))
             throw new DbException("Slot is already empty");
         markSlotUsed(tupNum, false);
-        tuples[tupNum] = null;
+        Arrays.fill(data, slotOffset(tupNum), slotOffset(tupNum + 1), (byte) 0);
     }
 
     /**
@@ -280,6 +304,7 @@ public class HeapPage implements Page {
 
         int slot = getNextEmptySlot();
         assert slot != -1;
+        writeTuple(t, slot);
         // set the record ID of the current tuple using the current page information
         if(t.getRecordId() == null){
             RecordId rid = new RecordId(getId(), slot);
@@ -289,16 +314,198 @@ public class HeapPage implements Page {
             t.getRecordId().setTupleNumber(slot);
         }
         markSlotUsed(slot, true);
-        tuples[slot] = t;
+    }
+
+    /**
+     * Adds the specified tuple to the page as a change of tid that can be
+     * committed or rolled back independently of the changes other
+     * transactions make to the page. A slot freed by a delete another
+     * transaction hasn't committed yet is not reused, since that delete
+     * may still be rolled back. The caller holds the latch exclusive.
+     * @throws DbException if the tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param tid The transaction adding the tuple.
+     * @return false if the page has no empty slot tid can use
+     */
+    public boolean insertTuple(Tuple t, TransactionId tid) throws DbException {
+        if(!t.getTupleDesc().equals(td))
+            throw new DbException("Tuple description is mismatch.");
+        if(emptySlotNum == 0)
+            return false;
+        Set<Integer> reserved = new HashSet<>();
+        for(TupleChange c : tupleChanges) {
+            if(c.deleted != null && !c.tid.equals(tid))
+                reserved.add(c.slot);
+        }
+        int slot = -1;
+        for(int i = 0; i < numSlots && slot < 0; i++) {
+            if(!isSlotUsed(i) && !reserved.contains(i))
+                slot = i;
+        }
+        if(slot < 0)
+            return false;
+        writeTuple(t, slot);
+        t.setRecordId(new RecordId(pid, slot));
+        markSlotUsed(slot, true);
+        tupleChanges.add(new TupleChange(tid, slot, null));
+        numTupleChanges = tupleChanges.size();
+        markDirty(true, tid);
+        return true;
+    }
+
+    /**
+     * Delete the specified tuple from the page as a change of tid, see
+     * {@link #insertTuple(Tuple, TransactionId)}. The caller holds the lock
+     * on the tuple and the latch of the page exclusive.
+     * @throws DbException if this tuple is not on this page, its slot is
+     *         empty or holds a tuple another transaction hasn't committed.
+     * @param t The tuple to delete
+     * @param tid The transaction deleting the tuple.
+     */
+    public void deleteTuple(Tuple t, TransactionId tid) throws DbException {
+        RecordId tupRecord = t.getRecordId();
+        if(!tupRecord.getPageId().equals(pid))
+            throw new DbException("Tuple to delete doesn't seem to be on this page");
+        int tupNum = tupRecord.getTupleNumber();
+        if(!isSlotUsed(tupNum))
+            throw new DbException("Slot is already empty");
+        for(TupleChange c : tupleChanges) {
+            if(c.slot == tupNum && c.deleted == null && !c.tid.equals(tid))
+                throw new DbException("Tuple was inserted by a transaction that hasn't committed");
+        }
+        byte[] deleted = Arrays.copyOfRange(data, slotOffset(tupNum), slotOffset(tupNum + 1));
+        markSlotUsed(tupNum, false);
+        Arrays.fill(data, slotOffset(tupNum), slotOffset(tupNum + 1), (byte) 0);
+        tupleChanges.add(new TupleChange(tid, tupNum, deleted));
+        numTupleChanges = tupleChanges.size();
+        markDirty(true, tid);
+    }
+
+    /**
+     * The caller holds the latch shared.
+     *
+     * @return true if tid has tuple changes on this page that are neither
+     *         committed nor rolled back
+     */
+    public boolean hasTupleChanges(TransactionId tid) {
+        for(TupleChange c : tupleChanges) {
+            if(c.tid.equals(tid))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Commit the tuple changes of tid. They become part of the before
+     * image, and the page stays dirty as long as other transactions have
+     * changes on it. The caller holds the latch exclusive.
+     *
+     * @return the committed image of the page: this page without the
+     *         changes of the other transactions, to be written to disk
+     */
+    public HeapPage commitTupleChanges(TransactionId tid) {
+        byte[] image = committedData(tid);
+        TransactionId other = null;
+        for(int i = tupleChanges.size() - 1; i >= 0; i--) {
+            TupleChange c = tupleChanges.get(i);
+            if(c.tid.equals(tid))
+                tupleChanges.remove(i);
+            else
+                other = c.tid;
+        }
+        numTupleChanges = tupleChanges.size();
+        synchronized(oldDataLock) {
+            oldData = image;
+        }
+        if(other == null)
+            markDirty(false, tid);
+        else
+            lastDirtiedTransaction = other;
+        return getBeforeImage();
+    }
+
+    /**
+     * The image commitTupleChanges would return, without committing
+     * anything, so that it can be logged before the commit. The caller
+     * holds the latch.
+     *
+     * @return this page without the changes of the transactions other than tid
+     */
+    public HeapPage getCommittedImage(TransactionId tid) {
+        byte[] image = committedData(tid);
+        return new HeapPage(pid, image, image.clone());
+    }
+
+    // the page bytes without the tuple changes of the other transactions
+    private byte[] committedData(TransactionId tid) {
+        byte[] image = data.clone();
+        for(int i = tupleChanges.size() - 1; i >= 0; i--) {
+            TupleChange c = tupleChanges.get(i);
+            if(!c.tid.equals(tid))
+                undo(c, image);
+        }
+        return image;
+    }
+
+    /**
+     * Roll back the tuple changes of tid in place, leaving the changes of
+     * other transactions alone. If nobody else has changes on the page, it
+     * is restored to its before image, which also rolls back page-level
+     * changes tid made after its lock was converted to READ_WRITE. The
+     * caller holds the latch exclusive.
+     */
+    public void rollbackTupleChanges(TransactionId tid) {
+        TransactionId other = null;
+        for(TupleChange c : tupleChanges) {
+            if(!c.tid.equals(tid))
+                other = c.tid;
+        }
+        if(other == null) {
+            synchronized(oldDataLock) {
+                System.arraycopy(oldData, 0, data, 0, data.length);
+            }
+            emptySlotNum = 0;
+            for (int i=0; i<numSlots; i++) {
+                if (!isSlotUsed(i))
+                    emptySlotNum++;
+            }
+            tupleChanges.clear();
+            numTupleChanges = 0;
+            markDirty(false, tid);
+            return;
+        }
+        for(int i = tupleChanges.size() - 1; i >= 0; i--) {
+            TupleChange c = tupleChanges.get(i);
+            if(c.tid.equals(tid)) {
+                undo(c, data);
+                emptySlotNum += (c.deleted == null ? 1 : -1);
+                tupleChanges.remove(i);
+            }
+        }
+        numTupleChanges = tupleChanges.size();
+        lastDirtiedTransaction = other;
+    }
+
+    // undo a tuple change in an image of the page
+    private void undo(TupleChange c, byte[] image) {
+        int offset = slotOffset(c.slot);
+        if(c.deleted == null) {
+            image[c.slot / 8] &= ~(1 << (c.slot % 8));
+            Arrays.fill(image, offset, offset + td.getSize(), (byte) 0);
+        } else {
+            image[c.slot / 8] |= (1 << (c.slot % 8));
+            System.arraycopy(c.deleted, 0, image, offset, c.deleted.length);
+        }
     }
 
     /**
      * Marks this page as dirty/not dirty and record that transaction
-     * that did the dirtying
+     * that did the dirtying. A page with uncommitted tuple changes stays
+     * dirty, so that it is never evicted with them.
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
-        isPageDirty = dirty;
+        isPageDirty = dirty || numTupleChanges > 0;
         if(isPageDirty)
             lastDirtiedTransaction = tid;
     }
@@ -325,7 +532,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        byte byteVal = header[i / 8];
+        byte byteVal = data[i / 8];
         return isNthBitSet(byteVal, i % 8);
     }
 
@@ -347,7 +554,7 @@ public class HeapPage implements Page {
         int bitNum = i % 8;
         // ^ = exclusive or
         if (isSlotUsed(i) ^ value)
-            header[byteNum] ^= (1 << bitNum);
+            data[byteNum] ^= (1 << bitNum);
 
         emptySlotNum += (value ? -1 : 1);
     }
@@ -358,12 +565,29 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tuplesOnPage = new LinkedList<>();
-        for(int i = 0; i < tuples.length; i++) {
-            if (isSlotUsed(i))
-                tuplesOnPage.add(tuples[i]);
-        }
-        return tuplesOnPage.iterator();
+        // tuples inserted while iterating are not returned
+        final byte[] usedSlots = Arrays.copyOf(data, headerSize);
+        return new Iterator<Tuple>() {
+            private int slot = 0;
+
+            public boolean hasNext() {
+                for (; slot < numSlots; slot++) {
+                    if (isNthBitSet(usedSlots[slot / 8], slot % 8) && isSlotUsed(slot))
+                        return true;
+                }
+                return false;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return readTuple(slot++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     private boolean isNthBitSet(byte byteVal, int n) {
@@ -372,8 +596,8 @@ public class HeapPage implements Page {
 
     public void printHeader() {
         System.out.println("header: ");
-        for(int i = 0; i < header.length; i++) {
-            byte b = header[i];
+        for(int i = 0; i < headerSize; i++) {
+            byte b = data[i];
             StringBuilder binaryStringBuilder = new StringBuilder();
             for(int j = 7; j >= 0; j--)
                 binaryStringBuilder.append(((0x80 >>> j) & b) == 0 ? '0':'1');
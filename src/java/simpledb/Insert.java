@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -10,6 +11,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples handed to the buffer pool at once. */
+    public static final int BATCH_SIZE = 1024;
+
     private TransactionId tid;
     private OpIterator child;
     private int tableID;
@@ -76,22 +80,26 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
         if(hasInserted) return null;
         int cnt = 0;
         BufferPool bpool = Database.getBufferPool();
+        ArrayList<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while(child.hasNext()){
-            Tuple t = child.next();
-            try {
-                bpool.insertTuple(tid, tableID, t);
-            }catch (IOException e){
-                e.printStackTrace();
-                throw new DbException("IO exception happened while trying to insert a tuple through buffer pool");
+            batch.add(child.next());
+            if(batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    bpool.insertTuples(tid, tableID, batch.iterator());
+                }catch (IOException e){
+                    e.printStackTrace();
+                    throw new DbException("IO exception happened while trying to insert tuples through buffer pool");
+                }
+                cnt += batch.size();
+                batch.clear();
             }
-            cnt++;
         }
 
         Tuple ret = new Tuple(resDesc);
@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used replacement. Pages are kept in an access-ordered list
+ * and the victim is the oldest page that is evictable; pinned pages at the
+ * head of the list are skipped.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<PageId, Boolean> order;
+
+    public LRUEvictionPolicy() {
+        order = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public void pageAdded(PageId pid) {
+        order.put(pid, Boolean.TRUE);
+    }
+
+    public void pageAccessed(PageId pid) {
+        order.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        Iterator<PageId> it = order.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return order.size();
+    }
+}
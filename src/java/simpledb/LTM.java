@@ -3,88 +3,250 @@ package simpledb;
  * Created by lincongli on 2/2/18.
  */
 
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Semaphore;
 
-// a k-v map: PID -> page state
-// page state (only one thread is allowed to r/w the page state at a time):
-    // 1. a list of transactions holding read lock on the page
-    // 2. a list of transactions holding write lock on the page
+// a k-v map: PID -> lock state
+// lock state (see LockState):
+    // 1. the transactions holding a lock on the page, and in which mode
+    // 2. the requests waiting for the page
     //
+// There is no lock around the table itself: entries are created, pinned and
+// removed with the per-key atomic compute operations of the map, so lock
+// requests on different pages never wait for each other. An entry stays in
+// the table while a transaction holds or waits for a lock on its page; the
+// pin count of an entry is the number of threads between looking it up and
+// being done with their lock request.
+//
+// Locking is multi-granularity: a page lock is preceded by an intention lock
+// on its table, and a tuple lock by an intention lock on its page. READ_ONLY
+// pages are locked S, READ_WRITE pages X and TUPLE_WRITE pages IX, so that
+// transactions writing different tuples of a page don't wait for each
+// other; tuples are only locked X.
+//
+// Once a transaction holds escalationThreshold page locks on a table, the
+// table lock is escalated to S (or X if the transaction writes to the table)
+// if that can be done without waiting, and the page locks are returned:
+// later pages of the table cost no lock at all.
+//
+// Deadlocks are detected by a DeadlockDetector when a request is about to
+// block, see there.
 public class LTM {
 
-    private ConcurrentMap<PageId, PageState> lockTable;
-    private Semaphore stateLock;
-    private DbLogger logger = new DbLogger(getClass().getName(), getClass().getName() + ".log", true);
+    public static final DeadlockDetector.VictimPolicy DEFAULT_VICTIM_POLICY = DeadlockDetector.VictimPolicy.YOUNGEST;
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    private ConcurrentMap<PageId, LockState> lockTable;
+    private ConcurrentMap<Integer, LockState> tableLocks;
+    private ConcurrentMap<RecordId, LockState> tupleLocks;
+    // tuples every transaction holds a lock on
+    private ConcurrentMap<TransactionId, Set<RecordId>> lockedTuples;
+    private DeadlockDetector detector;
+    private volatile int escalationThreshold;
+    private DbLogger logger = new DbLogger(getClass().getName(), getClass().getName() + ".log", false);
     public LTM(){
+        this(DEFAULT_VICTIM_POLICY);
+    }
+
+    public LTM(DeadlockDetector.VictimPolicy policy){
         lockTable = new ConcurrentHashMap<>();
-        stateLock = new Semaphore(1, true);
+        tableLocks = new ConcurrentHashMap<>();
+        tupleLocks = new ConcurrentHashMap<>();
+        lockedTuples = new ConcurrentHashMap<>();
+        detector = new DeadlockDetector(policy, this::numLocks);
+        escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    }
+
+    public DeadlockDetector getDeadlockDetector(){
+        return detector;
+    }
+
+    /**
+     * @param threshold number of page locks a transaction may hold on a
+     *                  table before they are escalated to a table lock
+     */
+    public void setEscalationThreshold(int threshold){
+        escalationThreshold = threshold;
     }
 
     public void getLock(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         logger.log("In getLock(), transaction: " + tid + " trying to " +
-                "request " + (perm == Permissions.READ_ONLY ? "read " : "write ") + " lock on page " + pid);
-        PageState ps;
-        acquireStateLock();
-        if(!lockTable.containsKey(pid)){
-            ps = new PageState(pid);
-            lockTable.put(pid, ps);
-        }else{
-            ps = lockTable.get(pid);
-        }
-        releaseStateLock();
-        ps.lock(tid, perm);
+                "request " + perm + " lock on page " + pid);
+        LockState table = getTableLock(tid, pid.getTableId(), perm);
+        if (table == null)
+            return;
+
+        LockState.Mode mode = (perm == Permissions.READ_ONLY ? LockState.Mode.S
+                : perm == Permissions.READ_WRITE ? LockState.Mode.X : LockState.Mode.IX);
+        if (lock(lockTable, pid, tid, mode) && table.partLocked(tid) >= escalationThreshold)
+            escalate(tid, pid.getTableId(), table);
         logger.log("In getLock(), transaction: " + tid + " got lock");
     }
 
+    /**
+     * Get the intention lock on a table that comes before a lock in mode
+     * perm on one of its pages, i.e. IS for READ_ONLY and IX otherwise.
+     * @return the lock state of the table, or null if tid holds a table
+     *         lock that already covers its pages in mode perm
+     */
+    LockState getTableLock(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        LockState table = tableLocks.computeIfAbsent(tableId, k -> new LockState("table " + k, detector));
+        LockState.Mode held = table.getMode(tid);
+        if (held != null && held.coversParts(perm))
+            return null;
+        table.lock(tid, perm == Permissions.READ_ONLY ? LockState.Mode.IS : LockState.Mode.IX);
+        return table;
+    }
+
+    /**
+     * Get an exclusive lock on a tuple. The transaction must hold a
+     * TUPLE_WRITE (or stronger) lock on the page of the tuple.
+     */
+    public void getTupleLock(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException, DbException {
+        PageId pid = rid.getPageId();
+        LockState table = tableLocks.get(pid.getTableId());
+        LockState page = lockTable.get(pid);
+        LockState.Mode tableMode = (table == null ? null : table.getMode(tid));
+        LockState.Mode pageMode = (page == null ? null : page.getMode(tid));
+        if (tableMode == LockState.Mode.X || pageMode == LockState.Mode.X)
+            return;
+        if (pageMode == null || !pageMode.covers(LockState.Mode.IX))
+            throw new DbException("Transaction " + tid + " has no TUPLE_WRITE lock on page " + pid);
+        if (lock(tupleLocks, rid, tid, LockState.Mode.X))
+            lockedTuples.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(rid);
+    }
+
+    // lock an entry of a lock table, creating it if needed
+    private <K> boolean lock(ConcurrentMap<K, LockState> locks, K key, TransactionId tid, LockState.Mode mode)
+            throws TransactionAbortedException {
+        LockState ls = locks.compute(key, (k, v) -> {
+            if (v == null)
+                v = new LockState(k, detector);
+            v.pins++;
+            return v;
+        });
+        try {
+            return ls.lock(tid, mode);
+        } finally {
+            // drop the entry if the request failed and nobody else uses it
+            locks.computeIfPresent(key, (k, v) -> {
+                if (v == ls)
+                    v.pins--;
+                return (v.pins == 0 && v.isFree()) ? null : v;
+            });
+        }
+    }
+
+    // unlock an entry of a lock table, dropping it if nobody else uses it
+    private <K> boolean unlock(ConcurrentMap<K, LockState> locks, K key, TransactionId tid) {
+        LockState ls = locks.get(key);
+        if (ls == null || !ls.unlock(tid))
+            return false;
+        locks.computeIfPresent(key, (k, v) -> (v.pins == 0 && v.isFree()) ? null : v);
+        return true;
+    }
+
+    // replace the page locks of tid on a table by a table lock, unless
+    // another transaction is in the way
+    private void escalate(TransactionId tid, int tableId, LockState table) {
+        LockState.Mode held = table.getMode(tid);
+        LockState.Mode target = (held == LockState.Mode.IS ? LockState.Mode.S : LockState.Mode.X);
+        if (!table.tryLock(tid, target))
+            return;
+        logger.log("Transaction " + tid + " escalated its page locks on table " + tableId + " to " + target);
+        for (Map.Entry<PageId, LockState> e : lockTable.entrySet()) {
+            if (e.getKey().getTableId() == tableId && e.getValue().getMode(tid) != null) {
+                // tuple locks under the page go first
+                if (target == LockState.Mode.X)
+                    returnTupleLocks(tid, e.getKey());
+                try {
+                    returnLock(tid, e.getKey());
+                } catch (DbException ex) {
+                    // returned concurrently by another thread of tid
+                }
+            }
+        }
+    }
+
     public void returnLock(TransactionId tid, PageId pid)
             throws DbException {
-        acquireStateLock();
         logger.log("In returnLock(), transaction: " + tid + " returns lock for page: " + pid);
-        if(!lockTable.containsKey(pid)){
+        if (!unlock(lockTable, pid, tid)) {
             logger.log("Transaction " + tid + " has no lock for page " + pid);
-            releaseStateLock();
             throw new DbException("No lock for page " + pid);
         }
-        PageState ps = lockTable.get(pid);
-        releaseStateLock();
-        if(ps.unlock(tid)){ // if there is no lock on this page
-            acquireStateLock();
-            lockTable.remove(pid);
-            releaseStateLock();
-        }
+        LockState table = tableLocks.get(pid.getTableId());
+        if (table != null)
+            table.partUnlocked(tid);
         logger.log("In returnLock(), transaction: " + tid + " returns lock for page: " + pid + " done");
     }
 
+    // return the tuple locks of tid on a page
+    private void returnTupleLocks(TransactionId tid, PageId pid) {
+        Set<RecordId> rids = lockedTuples.get(tid);
+        if (rids == null)
+            return;
+        for (RecordId rid : rids) {
+            if (rid.getPageId().equals(pid)) {
+                unlock(tupleLocks, rid, tid);
+                rids.remove(rid);
+            }
+        }
+    }
+
+    /**
+     * Return the locks of a transaction on the given pages, on its tuples
+     * and on all tables, e.g. when it completes. Pages the transaction
+     * doesn't hold a lock on are skipped.
+     */
+    public void returnAllLocks(TransactionId tid, Iterable<PageId> pids) {
+        Set<RecordId> rids = lockedTuples.remove(tid);
+        if (rids != null) {
+            for (RecordId rid : rids)
+                unlock(tupleLocks, rid, tid);
+        }
+        for (PageId pid : pids)
+            unlock(lockTable, pid, tid);
+        for (LockState table : tableLocks.values()) {
+            if (table.getMode(tid) != null)
+                table.unlock(tid);
+        }
+    }
+
     public boolean isPageLock(PageId pid){
         return lockTable.containsKey(pid);
     }
 
-    public boolean holdsLock(TransactionId tid, PageId pid) {
-        boolean ret;
-        acquireStateLock();
-        if (!lockTable.containsKey(pid)){
-            ret = false;
-        }else{
-            ret = lockTable.get(pid).holdsLock(tid);
-        }
-        releaseStateLock();
-        return ret;
+    /**
+     * @return true if a transaction holds a lock on the page that lets it
+     *         change the page, i.e. anything but IS or S
+     */
+    public boolean isWriteLocked(PageId pid){
+        LockState ls = lockTable.get(pid);
+        return ls != null && ls.isWriteLocked();
     }
 
-    private void acquireStateLock(){
-        try {
-            stateLock.acquire();
-        } catch (InterruptedException e){
-            e.printStackTrace();
-            System.out.println("This should not happen");
-            System.exit(1);
-        }
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        LockState table = tableLocks.get(pid.getTableId());
+        LockState.Mode held = (table == null ? null : table.getMode(tid));
+        if (held != null && held.coversParts(Permissions.READ_ONLY))
+            return true;
+        LockState ls = lockTable.get(pid);
+        return ls != null && ls.getMode(tid) != null;
     }
 
-    private void releaseStateLock(){
-        stateLock.release();
+    // number of pages tid holds a lock on, only used to pick deadlock victims
+    private int numLocks(TransactionId tid) {
+        int n = 0;
+        for (LockState ls : lockTable.values()) {
+            if (ls.getMode(tid) != null)
+                n++;
+        }
+        return n;
     }
 }
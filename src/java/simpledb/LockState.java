@@ -0,0 +1,298 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lock state of one lockable object (a table, a page or a tuple) in the
+ * multi-granularity lock table of LTM. Before it locks a page, a
+ * transaction takes an intention lock on the table of the page, and before
+ * it locks a tuple, on its page: IS to read, IX to write. A transaction
+ * that holds S, SIX or X on an object doesn't need locks below it for what
+ * that mode covers.
+ * <p>
+ * A transaction holds at most one mode on an object: a request for another
+ * mode converts it to the weakest mode covering both. New requests are
+ * granted in arrival order, conversions of a held lock go first.
+ *
+ * @Threadsafe
+ */
+class LockState implements DeadlockDetector.WaitQueue {
+
+    /** Lock modes. */
+    enum Mode {
+        /** Intention shared: the transaction reads some of the parts. */
+        IS,
+        /** Intention exclusive: the transaction writes some of the parts. */
+        IX,
+        /** Shared: the transaction reads the object. */
+        S,
+        /** Shared and intention exclusive: reads it all, writes some parts. */
+        SIX,
+        /** Exclusive: the transaction reads and writes the object. */
+        X;
+
+        // rows and columns in declaration order
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        boolean isCompatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode gives everything other gives */
+        boolean covers(Mode other) {
+            if (this == other || this == X || other == IS)
+                return true;
+            return this == SIX && (other == IX || other == S);
+        }
+
+        /** @return the weakest mode covering both modes */
+        Mode combine(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return SIX; // IX and S
+        }
+
+        /** @return true if this mode makes locks on the parts unnecessary for perm */
+        boolean coversParts(Permissions perm) {
+            return this == X || (perm == Permissions.READ_ONLY && (this == S || this == SIX));
+        }
+    }
+
+    private class Request {
+        final TransactionId tid;
+        final Mode mode;
+        final Thread thread;
+        final boolean conversion;
+
+        Request(TransactionId tid, Mode mode, boolean conversion) {
+            this.tid = tid;
+            this.mode = mode;
+            this.thread = Thread.currentThread();
+            this.conversion = conversion;
+        }
+    }
+
+    private final Object name;
+    private final DeadlockDetector detector;
+    // modes held, written under the monitor but read without it
+    private final ConcurrentMap<TransactionId, Mode> holders;
+    // locks held on the parts of the object by every holder, for escalation
+    private final ConcurrentMap<TransactionId, Integer> partLocks;
+    // waiting requests in arrival order, guarded by the monitor
+    private final List<Request> queue;
+    // threads using this entry of the lock table, only read and written
+    // inside the lock table's atomic compute operations
+    int pins;
+
+    /**
+     * @param name the locked object, e.g. its PageId
+     * @param detector the detector to consult before blocking
+     */
+    LockState(Object name, DeadlockDetector detector) {
+        this.name = name;
+        this.detector = detector;
+        this.holders = new ConcurrentHashMap<>();
+        this.partLocks = new ConcurrentHashMap<>();
+        this.queue = new ArrayList<>();
+        this.pins = 0;
+    }
+
+    /**
+     * @return the mode tid holds, or null
+     */
+    Mode getMode(TransactionId tid) {
+        return holders.get(tid);
+    }
+
+    /**
+     * @return true if some transaction holds a mode that lets it write
+     */
+    boolean isWriteLocked() {
+        for (Mode m : holders.values()) {
+            if (m != Mode.IS && m != Mode.S)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get a lock, or convert the one held to a mode covering both, blocking
+     * until it can be granted.
+     *
+     * @return true if tid held no lock on the object before
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *         the victim of a deadlock
+     */
+    boolean lock(TransactionId tid, Mode mode) throws TransactionAbortedException {
+        Mode held = holders.get(tid);
+        if (held != null && held.covers(mode))
+            return false;
+        Request r;
+        synchronized (this) {
+            held = holders.get(tid);
+            Mode target = (held == null ? mode : held.combine(mode));
+            if (target == held)
+                return false;
+            r = new Request(tid, target, held != null);
+            if (isGrantable(r, queue.size())) {
+                holders.put(tid, target);
+                return held == null;
+            }
+            queue.add(r);
+            detector.startWaiting(tid, this);
+        }
+        boolean granted = false;
+        try {
+            detector.beforeBlocking(tid);
+            synchronized (this) {
+                while (!isGrantable(r, queue.indexOf(r)))
+                    wait();
+                queue.remove(r);
+                holders.put(tid, r.mode);
+                granted = true;
+                // granted before an abort by the deadlock detector reached it
+                Thread.interrupted();
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // aborted by the deadlock detector
+            throw new TransactionAbortedException();
+        } finally {
+            if (!granted) {
+                synchronized (this) {
+                    queue.remove(r);
+                    // an abort by the detector may have reached the request
+                    // after it failed on its own, e.g. because the thread
+                    // found itself to be the victim; once the request is out
+                    // of the queue no other abort can reach it
+                    Thread.interrupted();
+                    notifyAll();
+                }
+            }
+            detector.stopWaiting(tid, this);
+        }
+        return !r.conversion;
+    }
+
+    /**
+     * Get a lock or convert the one held, only if that can be done without
+     * waiting.
+     *
+     * @return true if tid now holds a mode covering mode
+     */
+    synchronized boolean tryLock(TransactionId tid, Mode mode) {
+        Mode held = holders.get(tid);
+        Mode target = (held == null ? mode : held.combine(mode));
+        if (target == held)
+            return true;
+        if (!isGrantable(new Request(tid, target, held != null), queue.size()))
+            return false;
+        holders.put(tid, target);
+        return true;
+    }
+
+    /**
+     * Release the lock of tid.
+     *
+     * @return true if tid held a lock
+     */
+    synchronized boolean unlock(TransactionId tid) {
+        partLocks.remove(tid);
+        if (holders.remove(tid) == null)
+            return false;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return true if no transaction holds or waits for a lock
+     */
+    synchronized boolean isFree() {
+        return holders.isEmpty() && queue.isEmpty();
+    }
+
+    /**
+     * Count a lock taken by tid on a part of the object.
+     *
+     * @return the number of locks tid now holds on parts of the object
+     */
+    int partLocked(TransactionId tid) {
+        return partLocks.merge(tid, 1, Integer::sum);
+    }
+
+    /**
+     * Count a lock of tid on a part of the object that was returned.
+     */
+    void partUnlocked(TransactionId tid) {
+        partLocks.computeIfPresent(tid, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    // guarded by the monitor; a request at position pos of the queue (or
+    // about to be queued at the end) can be granted if it is compatible
+    // with the other holders and, unless it is a conversion, with the
+    // requests queued before it
+    private boolean isGrantable(Request r, int pos) {
+        for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+            if (!e.getKey().equals(r.tid) && !r.mode.isCompatibleWith(e.getValue()))
+                return false;
+        }
+        if (r.conversion)
+            return true;
+        for (int i = 0; i < pos; i++) {
+            Request ahead = queue.get(i);
+            if (!ahead.tid.equals(r.tid) && !r.mode.isCompatibleWith(ahead.mode))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Set<TransactionId> blockers(TransactionId tid) {
+        Set<TransactionId> blockers = new HashSet<>();
+        for (int pos = 0; pos < queue.size(); pos++) {
+            Request r = queue.get(pos);
+            if (!r.tid.equals(tid))
+                continue;
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!r.mode.isCompatibleWith(e.getValue()))
+                    blockers.add(e.getKey());
+            }
+            if (!r.conversion) {
+                for (int i = 0; i < pos; i++) {
+                    if (!r.mode.isCompatibleWith(queue.get(i).mode))
+                        blockers.add(queue.get(i).tid);
+                }
+            }
+        }
+        blockers.remove(tid);
+        return blockers;
+    }
+
+    @Override
+    public synchronized void abortWaiter(TransactionId tid) {
+        for (Request r : queue) {
+            if (r.tid.equals(tid))
+                r.thread.interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "lock on " + name;
+    }
+}
@@ -4,6 +4,14 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,20 +47,32 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log records are stored in segment files of a fixed size next
+to the log file (see LogSegments.)  The segments make up a single
+sequence of bytes, and a record is addressed by its position in it,
+its LSN.  LSNs keep growing for as long as the log file is kept, even
+when the log is started over.  Pages remember the LSN of the last
+record that changed them (see Page.getLSN() and PageLsnMap.)
+
+<li> The first long integer of the log file represents the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The second long integer of the log file is the LSN of the first
+record in the log.  Truncation moves it forward, and deletes the
+segments before it.
+
+<li> Log records are variable length.  The log ends at the first
+record of type 0, as segments are filled with zeros when they are
+made.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +81,21 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA RECORDS consist of the class and id of a page, followed by
+the byte ranges an update changed, with their before and after bytes
+(see PageDelta.)  Only the first update of a page after a checkpoint
+is logged with an UPDATE record; later updates of the page are logged
+with DELTA records, which are applied on top of it.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table: the pages with logged changes that were not
+on disk yet, and the LSN of the first such change (their recLSN.)  The
+format of the record is an integer count of the number of
+transactions, as well as a long integer transaction id and a long
+integer first record LSN for each active transaction, then an
+integer count of the number of dirty pages, as well as a page id (see
+writePageId) and a long integer recLSN for each dirty page.
 
 </ul>
 
@@ -74,25 +104,53 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile header;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
+    // held while forcing the segments without the monitor of the log file
+    private final Object forceLock = new Object();
+    private final GroupCommit groupCommit;
+    private final Checkpointer checkpointer;
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    // checkpoint LSN and LSN of the first record
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    // initial capacity of the record buffer, grown for bigger records
+    final static int RECORD_BUFFER_SIZE = 16 * 1024;
+
+    long currentOffset = -1;//LSN of the end of the log, protected by this
+    long firstLSN = -1;//LSN of the first record, protected by this
+    // LSN of the end of the last record appended
+    private volatile long appendedLSN = 0;
+    // LSN up to which the log is on disk; protected by forceLock
+    private volatile long durableLSN = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // records are serialized here and appended with a single write
+    private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(RECORD_BUFFER_SIZE); //protected by this
+    // class names as written by writeUTF
+    private final HashMap<Class<?>,byte[]> utfClassNames = new HashMap<Class<?>,byte[]>(); //protected by this
+    // pages with a full image in the log since the last checkpoint
+    private final HashSet<PageId> imagedPages = new HashSet<PageId>(); //protected by this
+    // pages with logged changes that may not be on disk yet: the LSN of
+    // the first and of the last such change by page
+    private final ConcurrentHashMap<PageId,long[]> unwrittenPages = new ConcurrentHashMap<PageId,long[]>();
+    // threads redo and undo run on
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    private volatile RecoveryStats recoveryStats;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,9 +163,23 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Initialize and back the log file with the specified file, storing
+        the log records in segments of the given size.
+
+        @param f The log file's name
+        @param segmentSize The size of the segment files in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        header = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
+        groupCommit = new GroupCommit(this);
+        checkpointer = new Checkpointer(this);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,17 +199,93 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
         }
     }
 
+    // start an empty log in a new segment; pages on disk may carry LSNs of
+    // the old log, so it starts after it, and LSN 0 is left for pages that
+    // were never logged
+    private void startLog() throws IOException {
+        long size = segments.getSegmentSize();
+        long nextLSN = Math.max(segments.end(), size);
+        if (header.length() >= HEADER_SIZE) {
+            header.seek(LONG_SIZE);
+            nextLSN = Math.max(nextLSN, (header.readLong() / size + 1) * size);
+        }
+        segments.deleteAll();
+        writeHeader(NO_CHECKPOINT_ID, nextLSN);
+        segments.seek(nextLSN);
+        appended();
+    }
+
+    // write the header of the log file and force it to disk
+    private void writeHeader(long checkpoint, long first) throws IOException {
+        header.seek(0);
+        header.writeLong(checkpoint);
+        header.writeLong(first);
+        header.getChannel().force(false);
+        firstLSN = first;
+    }
+
+    // a record was appended at the end of the log
+    private void appended() throws IOException {
+        currentOffset = segments.getFilePointer();
+        appendedLSN = currentOffset;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the group commit of this log, which forces the log for committing transactions */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    /** @return the number of threads recovery redoes and undoes changes on */
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /** Set the number of threads recovery redoes and undoes changes on.
+        Each thread takes the pages of its own partition, so the changes
+        of a page are applied in log order.
+        @param threads The number of threads, at least 1
+    */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("recovery needs at least one thread");
+        recoveryThreads = threads;
+    }
+
+    /** @return the timings of the last recovery, null if there was none */
+    public RecoveryStats getRecoveryStats() {
+        return recoveryStats;
+    }
+
+    /** @return the checkpointer of this log, which takes periodic checkpoints and writes pages in the background */
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    // clear the record buffer and start a record of the given type with a
+    // body of bodySize bytes, leaving room for the trailing start LSN
+    private ByteBuffer startRecord(int type, long tid, int bodySize) {
+        int size = INT_SIZE + LONG_SIZE + bodySize + LONG_SIZE;
+        if (recordBuffer.capacity() < size)
+            recordBuffer = ByteBuffer.allocateDirect(Math.max(size, 2 * recordBuffer.capacity()));
+        recordBuffer.clear();
+        recordBuffer.putInt(type);
+        recordBuffer.putLong(tid);
+        return recordBuffer;
+    }
+
+    // append the record in the record buffer at the end of the log
+    private void appendRecord() throws IOException {
+        recordBuffer.flip();
+        segments.write(recordBuffer);
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,36 +306,47 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendAbortRecord(tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
+    private void appendAbortRecord(long tid) throws IOException {
+        startRecord(ABORT_RECORD, tid, 0).putLong(currentOffset);
+        appendRecord();
+        appended();
+    }
+
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is forced to disk. The log is forced
+        once for all the transactions committing at the same time,
+        see {@link GroupCommit}.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            startRecord(COMMIT_RECORD, tid.getId(), 0).putLong(currentOffset);
+            appendRecord();
+            appended();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // wait outside of the monitor, so that other transactions can
+        // append their commit records to the same force
+        groupCommit.awaitForce();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page
+        was logged with an UPDATE record since the last checkpoint
+        already, only the bytes that changed are logged in a DELTA
+        record.  The LSN of the record is set on the after image.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -197,7 +356,11 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        logPage(tid.getId(), before, after);
+    }
+
+    private void logPage(long tid, Page before, Page after) throws IOException {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -205,94 +368,202 @@ public class LogFile {
            transaction id
            before page data (see writePageData)
            after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+           start LSN
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           and a delta record of
+
+           record type
+           transaction id
+           page class and id (see writePageHeader)
+           changed ranges (see PageDelta)
+           start LSN
+        */
+        ByteBuffer buf;
+        if (imagedPages.add(after.getId())) {
+            PageImage beforeImage = new PageImage(before);
+            PageImage afterImage = new PageImage(after);
+            buf = startRecord(UPDATE_RECORD, tid,
+                              beforeImage.size() + afterImage.size());
+            writePageData(buf, beforeImage);
+            writePageData(buf, afterImage);
+        } else {
+            buf = startDeltaRecord(tid, PageDelta.diff(before, after));
+        }
+        buf.putLong(currentOffset);
+        appendRecord();
+        long lsn = currentOffset;
+        after.setLSN(lsn);
+        unwrittenPages.compute(after.getId(),
+                               (pid, lsns) -> new long[] { lsns == null ? lsn : lsns[0], lsn });
+        appended();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Note that a page was written to disk after its change was logged
+        with logWrite.  Pages stay in the dirty page table of checkpoints
+        until they are written with their last logged change.
+        @param p The page written, with the LSN of the change
+    */
+    void pageWritten(Page p) {
+        unwrittenPages.computeIfPresent(p.getId(),
+                                        (pid, lsns) -> p.getLSN() >= lsns[1] ? null : lsns);
+    }
+
+    /** A page, serialized up front so that the size of its record is known */
+    private class PageImage {
+        final byte[] pageClassName;
+        final byte[] idClassName;
+        final int[] pageInfo;
+        final byte[] pageData;
 
-        //page data is:
+        PageImage(Page p) throws IOException {
+            this(p.getClass(), p.getId(), p.getPageData());
+        }
+
+        PageImage(Class<?> pageClass, PageId pid, byte[] pageData) throws IOException {
+            pageClassName = utfClassName(pageClass);
+            idClassName = utfClassName(pid.getClass());
+            pageInfo = pid.serialize();
+            this.pageData = pageData;
+        }
+
+        /** @return the number of bytes writePageHeader writes for this page */
+        int headerSize() {
+            return pageClassName.length + idClassName.length
+                + INT_SIZE + pageInfo.length * INT_SIZE;
+        }
+
+        /** @return the number of bytes writePageData writes for this page */
+        int size() {
+            return headerSize() + INT_SIZE + pageData.length;
+        }
+    }
+
+    // start a DELTA record of the given delta, see logWrite
+    private ByteBuffer startDeltaRecord(long tid, PageDelta delta) throws IOException {
+        PageImage page = new PageImage(delta.getPageClass(), delta.getPageId(), null);
+        ByteBuffer buf = startRecord(DELTA_RECORD, tid, page.headerSize() + delta.rangesSize());
+        writePageHeader(buf, page);
+        delta.writeRanges(buf);
+        return buf;
+    }
+
+    // the name of c as written by writeUTF, so readUTF can read it back
+    private byte[] utfClassName(Class<?> c) throws IOException {
+        byte[] name = utfClassNames.get(c);
+        if (name == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(c.getName());
+            name = bytes.toByteArray();
+            utfClassNames.put(c, name);
+        }
+        return name;
+    }
+
+    void writePageHeader(ByteBuffer buf, PageImage image) {
+        //page header is:
         // page class name
         // id class name
         // id class bytes
         // id class data
-        // page class bytes
-        // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        buf.put(image.pageClassName);
+        writePageId(buf, image.idClassName, image.pageInfo);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageId(ByteBuffer buf, byte[] idClassName, int[] pageInfo) {
+        //page id is:
+        // id class name
+        // id class bytes
+        // id class data
 
-        raf.writeInt(pageInfo.length);
+        buf.put(idClassName);
+        buf.putInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            buf.putInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+    void writePageData(ByteBuffer buf, PageImage image) {
+        //page data is:
+        // page header (see writePageHeader)
+        // page class bytes
+        // page class data
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        writePageHeader(buf, image);
+        buf.putInt(image.pageData.length);
+        buf.put(image.pageData);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    Page readPageData(DataInput in) throws IOException {
+        Class<?> pageClass = readClass(in);
+        PageId pid = readPageId(in);
+        byte[] pageData = readPageBytes(in);
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        //            Debug.log("READ PAGE OF TYPE " + pageClass.getName() + ", table = " + pid.getTableId() + ", page = " + pid.getPageNumber());
+        return newPage(pageClass, pid, pageData);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private static byte[] readPageBytes(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        if (pageSize < 0 || pageSize > BufferPool.getPageSize())
+            throw new IOException("bad page size " + pageSize);
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData);
+        return pageData;
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    PageDelta readPageDelta(DataInput in) throws IOException {
+        Class<?> pageClass = readClass(in);
+        PageId pid = readPageId(in);
+        return PageDelta.readRanges(in, pageClass, pid);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
+    private static Class<?> readClass(DataInput in) throws IOException {
+        String className = in.readUTF();
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
             e.printStackTrace();
             throw new IOException();
-        } catch (IllegalAccessException e) {
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        Class<?> idClass = readClass(in);
+        try {
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object idArgs[] = new Object[numIdArgs];
+            for (int i = 0; i<numIdArgs;i++) {
+                idArgs[i] = new Integer(in.readInt());
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
             e.printStackTrace();
             throw new IOException();
-        } catch (InvocationTargetException e) {
+        }
+    }
+
+    /** Create a page of the given class from its data, the way its file
+        reads it from disk.  BTree pages also take the key field of their
+        file.
+    */
+    static Page newPage(Class<?> pageClass, PageId pid, byte[] data) throws IOException {
+        try {
+            if (BTreePage.class.isAssignableFrom(pageClass)) {
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                return (Page) pageClass.getDeclaredConstructor(pid.getClass(), byte[].class, int.class)
+                    .newInstance(pid, data, f.keyField());
+            }
+            // pages may have other constructors too, e.g. HeapPage
+            return (Page) pageClass.getDeclaredConstructor(pid.getClass(), byte[].class)
+                .newInstance(pid, data);
+        } catch (ReflectiveOperationException e) {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,168 +578,365 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        startRecord(BEGIN_RECORD, tid.getId(), 0).putLong(currentOffset);
+        appendRecord();
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  Checkpoints
+        are fuzzy: they don't write any page, and the checkpoint record
+        tells recovery which changes before it may not be on disk yet
+        instead, with the dirty page table.  Pages are written by the
+        background writer of the checkpointer, see Checkpointer.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset;
+            // the pages of later updates may be written before they are
+            // checkpointed, so their updates need a full image in the log
+            // again
+            imagedPages.clear();
+            startCpOffset = currentOffset;
+            // changes are logged with the monitor held, so the dirty page
+            // table is up to date as of the record
+            ByteBuffer buf = startCheckpointRecord(tidToFirstLogRecord, dirtyPageTable());
+            buf.putLong(currentOffset);
+            appendRecord();
+            appended();
+            force();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            writeHeader(startCpOffset, firstLSN);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    // the pages with logged changes that may not be on disk, with the LSN
+    // of the first such change
+    private Map<PageId,Long> dirtyPageTable() {
+        Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+        for (Map.Entry<PageId,long[]> e : unwrittenPages.entrySet())
+            dirtyPages.put(e.getKey(), e.getValue()[0]);
+        return dirtyPages;
+    }
+
+    // start a CHECKPOINT record of the given transactions, with the offsets
+    // of their first records, and dirty pages, with their recLSN
+    private ByteBuffer startCheckpointRecord(Map<Long,Long> xactions, Map<PageId,Long> dirtyPages)
+        throws IOException {
+        int size = INT_SIZE + xactions.size() * 2 * LONG_SIZE + INT_SIZE;
+        for (PageId pid : dirtyPages.keySet())
+            size += utfClassName(pid.getClass()).length + INT_SIZE
+                + pid.serialize().length * INT_SIZE + LONG_SIZE;
+        //no tid , but leave space for convenience
+        ByteBuffer buf = startRecord(CHECKPOINT_RECORD, -1, size);
+
+        //write list of outstanding transactions
+        buf.putInt(xactions.size());
+        for (Map.Entry<Long,Long> e : xactions.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            buf.putLong(e.getKey());
+            buf.putLong(e.getValue());
+        }
+
+        //and the dirty page table
+        buf.putInt(dirtyPages.size());
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            writePageId(buf, utfClassName(e.getKey().getClass()), e.getKey().serialize());
+            buf.putLong(e.getValue());
+        }
+        return buf;
+    }
+
+    // read the dirty page table of a CHECKPOINT record
+    private static Map<PageId,Long> readDirtyPages(DataInput in) throws IOException {
+        int numPages = in.readInt();
+        Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+        while (numPages-- > 0) {
+            PageId pid = readPageId(in);
+            dirtyPages.put(pid, in.readLong());
+        }
+        return dirtyPages;
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Records keep their LSN, so nothing is copied: the
+        segments before the first record that is still needed are
+        deleted.
+    */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        header.seek(0);
+        long cpLoc = header.readLong();
 
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            segments.seek(cpLoc);
+            int cpType = segments.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = segments.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = segments.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = segments.readLong();
+                long firstLogRecord = segments.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
+
+            // redo starts at the first change of the dirty pages
+            for (long recLSN : readDirtyPages(segments).values()) {
+                if (recLSN < minLogRecord) {
+                    minLogRecord = recLSN;
+                }
+            }
+            segments.seek(currentOffset);
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        if (cpLoc == -1L || minLogRecord <= firstLSN)
+            return;
 
-        raf.seek(minLogRecord);
+        Debug.log("TRUNCATING LOG;  WAS " + (currentOffset - firstLSN) + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (currentOffset - minLogRecord));
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+        // recovery must not look for records in the deleted segments
+        writeHeader(cpLoc, minLogRecord);
+        segments.deleteBefore(minLogRecord);
+    }
+
+    /** Rollback the specified transaction, setting the state of any
+        of pages it updated to their pre-updated state.  To preserve
+        transaction semantics, this should not be called on
+        transactions that have already committed (though this may not
+        be enforced by this method.)
+
+        @param tid The transaction to rollback
+    */
+    public void rollback(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized(this) {
+                preAppend();
+                // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+
+                // the changes of tid by page, newest first
+                List<PageChange> changes = new ArrayList<PageChange>();
+                readRecords(firstRecord, changes, new HashSet<Long>());
+                segments.seek(currentOffset);
+                LinkedHashMap<PageId,List<PageChange>> pages = new LinkedHashMap<PageId,List<PageChange>>();
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    PageChange c = changes.get(i);
+                    if (c.tid != tid.getId())
+                        continue;
+                    if (!pages.containsKey(c.pid))
+                        pages.put(c.pid, new ArrayList<PageChange>());
+                    pages.get(c.pid).add(c);
+                }
+
+                HashMap<PageId,Page> onDisk = new HashMap<PageId,Page>();
+                HashMap<PageId,Page> images = new HashMap<PageId,Page>();
+                for (Map.Entry<PageId,List<PageChange>> e : pages.entrySet()) {
+                    Page p = readDiskPage(e.getKey());
+                    onDisk.put(e.getKey(), p);
+                    for (PageChange c : e.getValue())
+                        p = c.undo(p);
+                    images.put(e.getKey(), p);
+                }
+                // the cached pages must lose the changes too
+                Database.getBufferPool().rollbackPages(tid, images);
+                for (PageId pid : pages.keySet())
+                    restorePage(tid.getId(), onDisk.get(pid), images.get(pid));
+            }
+        }
+    }
 
-                Debug.log("NEW START = " + newStart);
+    /** An UPDATE or DELTA record read back from the log */
+    private class PageChange {
+        final long tid;
+        final long lsn;
+        final PageId pid;
+        private final Class<?> pageClass;
+        private final byte[] before; // UPDATE records
+        private final byte[] after;
+        private final PageDelta delta; // DELTA records
+
+        PageChange(long tid, long lsn, Class<?> pageClass, PageId pid,
+                   byte[] before, byte[] after, PageDelta delta) {
+            this.tid = tid;
+            this.lsn = lsn;
+            this.pageClass = pageClass;
+            this.pid = pid;
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        /** @return the page with this change, given the page without
+            it, or null to read that from disk if the record doesn't have
+            the whole page */
+        Page redo(Page p) throws IOException {
+            if (delta == null)
+                return newPage(pageClass, pid, after);
+            return delta.redo(p == null ? readDiskPage(pid) : p);
+        }
 
+        /** @return the page without this change, given the page with it */
+        Page undo(Page p) throws IOException {
+            if (delta == null)
+                return newPage(pageClass, pid, before);
+            return delta.undo(p);
+        }
+    }
+
+    // read the records from the given LSN to the end of the log, adding
+    // the page changes to changes and keeping in live the transactions that
+    // began but didn't commit or abort. The log ends before the first record
+    // that is of type 0, as in the zeros of a segment, or cut short, and the
+    // LSN it ends at is returned.
+    private long readRecords(long lsn, List<PageChange> changes, Set<Long> live)
+        throws IOException {
+        segments.seek(lsn);
+        long end = lsn;
+        while (true) {
+            try {
+                long start = segments.getFilePointer();
+                int type = segments.readInt();
+                long record_tid = segments.readLong();
+
+                PageChange change = null;
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    Class<?> pageClass = readClass(segments);
+                    PageId pid = readPageId(segments);
+                    byte[] before = readPageBytes(segments);
+                    readClass(segments);
+                    readPageId(segments);
+                    byte[] after = readPageBytes(segments);
+                    change = new PageChange(record_tid, start, pageClass, pid, before, after, null);
+                    break;
+                case DELTA_RECORD:
+                    PageDelta delta = readPageDelta(segments);
+                    change = new PageChange(record_tid, start, delta.getPageClass(),
+                                            delta.getPageId(), null, null, delta);
                     break;
                 case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
+                    int numXactions = segments.readInt();
                     while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        segments.readLong();
+                        segments.readLong();
                     }
+                    readDirtyPages(segments);
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
                     break;
+                default:
+                    return end;
                 }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                //all records end with their LSN
+                if (segments.readLong() != start)
+                    return end;
+                if (change != null)
+                    changes.add(change);
+                if (type == BEGIN_RECORD)
+                    live.add(record_tid);
+                else if (type == COMMIT_RECORD || type == ABORT_RECORD)
+                    live.remove(record_tid);
+                end = segments.getFilePointer();
+            } catch (IOException e) {
+                // a record cut short, e.g. by a crash
+                return end;
             }
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    private static Page readDiskPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    // the LSN of a page on disk, 0 if its file doesn't keep one
+    private static long diskLSN(PageId pid) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getPageLsnMap().getLSN(pid.getPageNumber());
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).getPageLsnMap().getLSN(pid.getPageNumber());
+        return 0;
     }
 
-    /** Rollback the specified transaction, setting the state of any
-        of pages it updated to their pre-updated state.  To preserve
-        transaction semantics, this should not be called on
-        transactions that have already committed (though this may not
-        be enforced by this method.)
+    /** Work on one page during recovery */
+    private interface PageTask {
+        void run(PageId pid) throws IOException;
+    }
 
-        @param tid The transaction to rollback
-    */
-    public void rollback(TransactionId tid)
-        throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+    // run task on each of the given pages, on the recovery threads; the
+    // pages are partitioned by id, and the pages of a partition are done by
+    // one task, so that a page is never worked on by two threads
+    private void forEachPage(ExecutorService workers, Collection<PageId> pids, final PageTask task)
+        throws IOException {
+        int numPartitions = recoveryThreads;
+        List<List<PageId>> partitions = new ArrayList<List<PageId>>();
+        for (int i = 0; i < numPartitions; i++)
+            partitions.add(new ArrayList<PageId>());
+        for (PageId pid : pids)
+            partitions.get(Math.floorMod(pid.hashCode(), numPartitions)).add(pid);
+
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+        for (final List<PageId> partition : partitions) {
+            if (partition.isEmpty())
+                continue;
+            tasks.add(workers.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (PageId pid : partition)
+                        task.run(pid);
+                    return null;
+                }
+            }));
+        }
+        IOException failure = null;
+        for (Future<Void> f : tasks) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
             }
         }
+        if (failure != null)
+            throw failure;
+    }
+
+    // write an older version of a page, logging the change on behalf of tid
+    // so that redo repeats it after a crash
+    private void restorePage(long tid, Page current, Page older) throws IOException {
+        logPage(tid, current, older);
+        forceTo(older.getLSN());
+        Database.getCatalog().getDatabaseFile(older.getId().getTableId()).writePage(older);
+        pageWritten(older);
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -477,8 +945,10 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            checkpointer.stop();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
+            header.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,12 +958,127 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The log is read once; the changes are then redone and undone
+        by page on the recovery threads, see setRecoveryThreads, and
+        the timings of the phases are kept, see getRecoveryStats.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (header.length() < HEADER_SIZE) {
+                    startLog();
+                } else {
+                    header.seek(0);
+                    long cpLoc = header.readLong();
+                    firstLSN = header.readLong();
+
+                    long analysisStart = System.currentTimeMillis();
+                    Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                    if (cpLoc != NO_CHECKPOINT_ID) {
+                        segments.seek(cpLoc + INT_SIZE + LONG_SIZE);
+                        int numXactions = segments.readInt();
+                        segments.skipBytes(numXactions * 2 * LONG_SIZE);
+                        dirtyPages = readDirtyPages(segments);
+                    }
+
+                    List<PageChange> changes = new ArrayList<PageChange>();
+                    Set<Long> losers = new HashSet<Long>();
+                    long end = readRecords(firstLSN, changes, losers);
+                    // drop a record the crash cut short
+                    segments.truncate(end);
+                    segments.seek(end);
+                    appended();
+
+                    // redo the changes the pages on disk don't have yet;
+                    // before the checkpoint, only the pages of its dirty
+                    // page table may lack changes, from their recLSN on
+                    long cpLSN = cpLoc == NO_CHECKPOINT_ID ? 0 : cpLoc;
+                    final Map<PageId,List<PageChange>> redo = new LinkedHashMap<PageId,List<PageChange>>();
+                    // and undo the changes of the transactions that didn't
+                    // finish
+                    final Map<PageId,List<PageChange>> undo = new LinkedHashMap<PageId,List<PageChange>>();
+                    for (PageChange c : changes) {
+                        if (losers.contains(c.tid))
+                            undo.computeIfAbsent(c.pid, pid -> new ArrayList<PageChange>()).add(c);
+                        if (c.lsn < cpLSN) {
+                            Long recLSN = dirtyPages.get(c.pid);
+                            if (recLSN == null || c.lsn < recLSN)
+                                continue;
+                        }
+                        redo.computeIfAbsent(c.pid, pid -> new ArrayList<PageChange>()).add(c);
+                    }
+                    long analysisMillis = System.currentTimeMillis() - analysisStart;
+
+                    ExecutorService workers = Executors.newFixedThreadPool(recoveryThreads);
+                    try {
+                        long redoStart = System.currentTimeMillis();
+                        final AtomicInteger changesRedone = new AtomicInteger();
+                        final AtomicInteger pagesRedone = new AtomicInteger();
+                        forEachPage(workers, redo.keySet(), pid -> {
+                            long pageLSN = diskLSN(pid);
+                            Page p = null;
+                            for (PageChange c : redo.get(pid)) {
+                                if (c.lsn <= pageLSN)
+                                    continue;
+                                p = c.redo(p);
+                                p.setLSN(c.lsn);
+                                changesRedone.incrementAndGet();
+                            }
+                            if (p != null) {
+                                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                                pagesRedone.incrementAndGet();
+                            }
+                        });
+                        long redoMillis = System.currentTimeMillis() - redoStart;
+
+                        long undoStart = System.currentTimeMillis();
+                        final Map<PageId,Page> onDisk = new ConcurrentHashMap<PageId,Page>();
+                        final Map<PageId,Page> images = new ConcurrentHashMap<PageId,Page>();
+                        forEachPage(workers, undo.keySet(), pid -> {
+                            Page p = readDiskPage(pid);
+                            onDisk.put(pid, p);
+                            // newest first
+                            List<PageChange> pageChanges = undo.get(pid);
+                            for (int i = pageChanges.size() - 1; i >= 0; i--)
+                                p = pageChanges.get(i).undo(p);
+                            images.put(pid, p);
+                        });
+                        // log the undo of each page on behalf of its newest
+                        // loser, so that redo repeats it after a crash
+                        for (Map.Entry<PageId,List<PageChange>> e : undo.entrySet()) {
+                            long tid = e.getValue().get(e.getValue().size() - 1).tid;
+                            logPage(tid, onDisk.get(e.getKey()), images.get(e.getKey()));
+                        }
+                        force();
+                        forEachPage(workers, undo.keySet(), pid -> {
+                            Page p = images.get(pid);
+                            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                            pageWritten(p);
+                        });
+                        for (Long tid : losers)
+                            appendAbortRecord(tid);
+                        force();
+                        long undoMillis = System.currentTimeMillis() - undoStart;
+
+                        recoveryStats = new RecoveryStats(recoveryThreads, analysisMillis, redoMillis, undoMillis,
+                                                          changes.size(), changesRedone.get(), pagesRedone.get(),
+                                                          losers.size(), undo.size());
+                        Debug.log(recoveryStats.toString());
+                    } finally {
+                        workers.shutdown();
+                    }
+                    tidToFirstLogRecord.clear();
+                }
+
+                // free space maps aren't logged, recount the recovered pages
+                Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+                while (tableIds.hasNext()) {
+                    DbFile f = Database.getCatalog().getDatabaseFile(tableIds.next());
+                    if (f instanceof HeapFile)
+                        ((HeapFile) f).getFreeSpaceMap().rebuild();
+                }
             }
          }
     }
@@ -504,7 +1089,27 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        forceChannel();
+    }
+
+    /** Force the log to disk up to the end of the record with the given
+        LSN, unless it is there already.  Pages must not be written before
+        the record of their last change is on disk (write-ahead logging.)
+        @param lsn The LSN of the record, e.g. the LSN of a page
+    */
+    public void forceTo(long lsn) throws IOException {
+        if (lsn >= durableLSN)
+            forceChannel();
+    }
+
+    // force the log without the monitor of the log file, so that records
+    // can be appended meanwhile
+    void forceChannel() throws IOException {
+        synchronized (forceLock) {
+            long end = appendedLSN;
+            segments.force();
+            durableLSN = Math.max(durableLSN, end);
+        }
     }
 
 }
@@ -0,0 +1,439 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogSegments stores the records of a log file in segment files of a fixed
+ * size. The log is one sequence of bytes addressed by LSN: the segment with
+ * number n holds the bytes from LSN n * segmentSize on, and is stored in the
+ * file named after the log file and n in hex, e.g. log.0000000000000003. The
+ * segment index maps segment numbers to the segments on disk.
+ * <p>
+ * Records may span two segments. Truncating the log deletes whole segments,
+ * so no record is copied. Segments are preallocated in full, filled with
+ * zeros by a background thread before the log reaches them, so appending
+ * never extends a file, and forcing the log only has to force data. The
+ * zeros past the last record tell readers where the log ends.
+ * <p>
+ * Reads and writes go through one position, like a RandomAccessFile.
+ *
+ * @NotThreadsafe, except for force(), see LogFile
+ */
+class LogSegments implements DataInput {
+
+    /** Default size of a segment file. */
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    // zeros written to preallocate segments, and bytes read ahead
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static class Segment {
+        final long number;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+
+        Segment(long number, File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+    }
+
+    private final File logFile;
+    private final int segmentSize;
+    private final TreeMap<Long, Segment> index;
+    private long position;
+    // segments written since the last force; protected by itself
+    private final List<Segment> unforced;
+    private ThreadPoolExecutor preallocator; // created on the first write
+    private Future<Void> preallocated; // the segment after the last one
+    private final ByteBuffer readAhead;
+    private long readAheadStart; // LSN of the bytes in readAhead, -1 if none
+
+    /**
+     * Open the segments of a log file, if it has any.
+     * @param logFile the log file the segments are named after
+     * @param segmentSize the size of a segment in bytes
+     */
+    LogSegments(File logFile, int segmentSize) throws IOException {
+        if (segmentSize < 1)
+            throw new IllegalArgumentException("segments must not be empty");
+        this.logFile = logFile.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        index = new TreeMap<Long, Segment>();
+        unforced = new ArrayList<Segment>();
+        readAhead = ByteBuffer.allocate(CHUNK_SIZE);
+        readAheadStart = -1;
+        for (File f : segmentFiles(logFile))
+            index.put(segmentNumber(f), new Segment(segmentNumber(f), f));
+    }
+
+    /** @return the segment files of a log file */
+    static List<File> segmentFiles(File logFile) {
+        List<File> files = new ArrayList<File>();
+        File[] all = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (all == null)
+            return files;
+        for (File f : all) {
+            if (segmentNumber(logFile, f) >= 0)
+                files.add(f);
+        }
+        return files;
+    }
+
+    /** Delete the segment files of a log file. */
+    static void delete(File logFile) {
+        for (File f : segmentFiles(logFile))
+            f.delete();
+    }
+
+    // the number of a segment of the log file, -1 if f is no segment of it
+    private static long segmentNumber(File logFile, File f) {
+        String prefix = logFile.getName() + ".";
+        String name = f.getName();
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + 16)
+            return -1;
+        try {
+            return Long.parseUnsignedLong(name.substring(prefix.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long segmentNumber(File f) {
+        return segmentNumber(logFile, f);
+    }
+
+    private File segmentFile(long number) {
+        return new File(logFile.getParentFile(), logFile.getName() + "." + String.format("%016x", number));
+    }
+
+    /** @return the size of a segment in bytes */
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the number of segments on disk */
+    int numSegments() {
+        return index.size();
+    }
+
+    /** @return the LSN after the last segment, 0 if there is none */
+    long end() {
+        return index.isEmpty() ? 0 : (index.lastKey() + 1) * segmentSize;
+    }
+
+    /** Set the position of the next read or write. */
+    void seek(long lsn) {
+        position = lsn;
+    }
+
+    /** @return the position of the next read or write */
+    long getFilePointer() {
+        return position;
+    }
+
+    /**
+     * Write the remaining bytes of buf at the position, creating the segments
+     * it reaches.
+     */
+    void write(ByteBuffer buf) throws IOException {
+        readAheadStart = -1;
+        while (buf.hasRemaining()) {
+            Segment s = segment(position / segmentSize, true);
+            long offset = position % segmentSize;
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + (int) Math.min(part.remaining(), segmentSize - offset));
+            int n = part.remaining();
+            while (part.hasRemaining())
+                offset += s.channel.write(part, offset);
+            buf.position(buf.position() + n);
+            position += n;
+            synchronized (unforced) {
+                if (!unforced.contains(s))
+                    unforced.add(s);
+            }
+        }
+    }
+
+    /**
+     * Force the segments written since the last force to disk. Only their
+     * data, since preallocated segments don't change size. May be called
+     * while other methods are running.
+     */
+    void force() throws IOException {
+        List<Segment> written;
+        synchronized (unforced) {
+            written = new ArrayList<Segment>(unforced);
+            unforced.clear();
+        }
+        for (Segment s : written) {
+            try {
+                s.channel.force(false);
+            } catch (ClosedChannelException e) {
+                // deleted by a truncation meanwhile
+            }
+        }
+    }
+
+    /**
+     * Fill the log with zeros from the given LSN to the end of its segment
+     * and delete the segments after it, so that the log ends there.
+     */
+    void truncate(long lsn) throws IOException {
+        readAheadStart = -1;
+        Segment s = segment(lsn / segmentSize, false);
+        if (s != null) {
+            ByteBuffer zeros = ByteBuffer.allocate(CHUNK_SIZE);
+            for (long offset = lsn % segmentSize; offset < segmentSize; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(CHUNK_SIZE, segmentSize - offset));
+                offset += s.channel.write(zeros, offset);
+            }
+            synchronized (unforced) {
+                if (!unforced.contains(s))
+                    unforced.add(s);
+            }
+        }
+        while (!index.isEmpty() && index.lastKey() > lsn / segmentSize)
+            deleteSegment(index.lastEntry().getValue());
+    }
+
+    /** Delete the segments that end at or before the given LSN. */
+    void deleteBefore(long lsn) throws IOException {
+        while (!index.isEmpty() && (index.firstKey() + 1) * segmentSize <= lsn)
+            deleteSegment(index.firstEntry().getValue());
+    }
+
+    /** Delete all segments. */
+    void deleteAll() throws IOException {
+        while (!index.isEmpty())
+            deleteSegment(index.firstEntry().getValue());
+    }
+
+    private void deleteSegment(Segment s) throws IOException {
+        readAheadStart = -1;
+        index.remove(s.number);
+        synchronized (unforced) {
+            unforced.remove(s);
+        }
+        s.raf.close();
+        s.file.delete();
+    }
+
+    /** Close the segment files, once the next segment is preallocated. */
+    void close() throws IOException {
+        if (preallocator != null)
+            preallocator.shutdown();
+        if (preallocated != null) {
+            try {
+                preallocated.get();
+            } catch (ExecutionException e) {
+                // made when the log reaches it
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            preallocated = null;
+        }
+        for (Segment s : index.values())
+            s.raf.close();
+    }
+
+    // the segment with the given number; a missing segment is created if
+    // create is set, or else null is returned
+    private Segment segment(long number, boolean create) throws IOException {
+        Segment s = index.get(number);
+        if (s != null || !create)
+            return s;
+        File f = segmentFile(number);
+        if (preallocated != null) {
+            try {
+                preallocated.get();
+            } catch (ExecutionException e) {
+                // preallocate it here
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            preallocated = null;
+        }
+        preallocate(number);
+        s = new Segment(number, f);
+        index.put(number, s);
+        // the next segment is made while this one fills up
+        if (number == index.lastKey())
+            preallocateNext(number + 1);
+        return s;
+    }
+
+    private void preallocateNext(final long number) {
+        if (preallocator == null) {
+            preallocator = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "simpledb-log-preallocator");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            preallocator.allowCoreThreadTimeOut(true);
+        }
+        preallocated = preallocator.submit(() -> preallocate(number));
+    }
+
+    // create the file of a segment filled with zeros, unless it exists;
+    // it is filled under a temporary name, so that it never replaces a
+    // segment with records
+    private Void preallocate(long number) throws IOException {
+        File f = segmentFile(number);
+        if (f.exists())
+            return null;
+        File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate(CHUNK_SIZE);
+            for (long offset = 0; offset < segmentSize; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(CHUNK_SIZE, segmentSize - offset));
+                offset += channel.write(zeros, offset);
+            }
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        try {
+            // unlike a rename, a link never replaces a file
+            Files.createLink(f.toPath(), tmp.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // made meanwhile
+        } finally {
+            tmp.delete();
+        }
+        return null;
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    /**
+     * Read len bytes from the position on, which may span segments.
+     * @throws EOFException if the log ends before
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (readAheadStart < 0 || position < readAheadStart
+                || position >= readAheadStart + readAhead.limit())
+                fillReadAhead();
+            int start = (int) (position - readAheadStart);
+            int n = Math.min(len, readAhead.limit() - start);
+            System.arraycopy(readAhead.array(), start, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // read the bytes from the position to the end of its segment, up to the
+    // size of the read-ahead buffer
+    private void fillReadAhead() throws IOException {
+        readAheadStart = -1;
+        Segment s = index.get(position / segmentSize);
+        if (s == null)
+            throw new EOFException();
+        long offset = position % segmentSize;
+        readAhead.clear();
+        readAhead.limit((int) Math.min(CHUNK_SIZE, segmentSize - offset));
+        while (readAhead.hasRemaining()) {
+            int n = s.channel.read(readAhead, offset + readAhead.position());
+            if (n < 0)
+                break;
+        }
+        readAhead.flip();
+        if (readAhead.limit() == 0)
+            throw new EOFException();
+        readAheadStart = position;
+    }
+
+    public int skipBytes(int n) {
+        position += n;
+        return n;
+    }
+
+    private final byte[] scratch = new byte[8];
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        readFully(scratch, 0, 2);
+        return ((scratch[0] & 0xFF) << 8) | (scratch[1] & 0xFF);
+    }
+
+    public char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return ByteBuffer.wrap(scratch, 0, 4).getInt();
+    }
+
+    public long readLong() throws IOException {
+        readFully(scratch, 0, 8);
+        return ByteBuffer.wrap(scratch, 0, 8).getLong();
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public String readLine() {
+        throw new UnsupportedOperationException("the log has no lines");
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -56,4 +56,22 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * @return the latch to hold while physically reading or changing this
+     * page without a lock that keeps other transactions off it
+     */
+    public PageLatch getLatch();
+
+    /**
+     * @return the LSN of the last log record that changed this page, see
+     * {@link LogFile}; 0 if the page was not logged since it was read
+     */
+    public long getLSN();
+
+    /**
+     * Set the LSN of the log record that changed this page. Called by the
+     * log when it logs the page.
+     */
+    public void setLSN(long lsn);
 }
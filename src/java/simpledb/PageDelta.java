@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PageDelta is the change a transaction made to a page, as the byte ranges
+ * that differ between the before and the after image of the page. Both
+ * versions of each range are kept, so a delta can be redone on the before
+ * image and undone on the after image.
+ * <p>
+ * Pages keep the fields of a tuple or an entry together in its slot, and the
+ * slot's bit in the header, so updating, inserting or deleting a slot changes
+ * a couple of short ranges. Ranges that are only a few bytes apart are
+ * merged, since each range costs an offset and a length in the log.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /** Ranges at most this many bytes apart are merged into one. */
+    static final int MERGE_GAP = 4;
+
+    private final Class<?> pageClass;
+    private final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(Class<?> pageClass, PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageClass = pageClass;
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta between two images of the same page.
+     * @throws IllegalArgumentException if the images are not of the same page
+     */
+    static PageDelta diff(Page beforePage, Page afterPage) {
+        if (!beforePage.getId().equals(afterPage.getId()) || beforePage.getClass() != afterPage.getClass())
+            throw new IllegalArgumentException("before and after image are not of the same page");
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        if (a.length != b.length)
+            throw new IllegalArgumentException("before and after image differ in size");
+
+        List<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over changed bytes and short unchanged gaps
+            for (int j = end; j < a.length && j - end <= MERGE_GAP; j++) {
+                if (a[j] != b[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0], end = ranges.get(r)[1];
+            offsets[r] = start;
+            before[r] = new byte[end - start];
+            after[r] = new byte[end - start];
+            System.arraycopy(b, start, before[r], 0, end - start);
+            System.arraycopy(a, start, after[r], 0, end - start);
+        }
+        return new PageDelta(beforePage.getClass(), beforePage.getId(), offsets, before, after);
+    }
+
+    /** @return the class of the page this delta changes */
+    Class<?> getPageClass() {
+        return pageClass;
+    }
+
+    /** @return the id of the page this delta changes */
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the number of changed byte ranges */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /**
+     * Apply this delta to the before image of its page.
+     * @return the after image
+     */
+    Page redo(Page p) throws IOException {
+        return apply(p, after);
+    }
+
+    /**
+     * Revert this delta on the after image of its page.
+     * @return the before image
+     */
+    Page undo(Page p) throws IOException {
+        return apply(p, before);
+    }
+
+    private Page apply(Page p, byte[][] ranges) throws IOException {
+        if (!p.getId().equals(pid))
+            throw new IllegalArgumentException("delta of page " + pid + " applied to page " + p.getId());
+        byte[] data = p.getPageData().clone();
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(ranges[r], 0, data, offsets[r], ranges[r].length);
+        return LogFile.newPage(pageClass, pid, data);
+    }
+
+    /** @return the number of bytes writeRanges writes */
+    int rangesSize() {
+        int size = LogFile.INT_SIZE;
+        for (int r = 0; r < offsets.length; r++)
+            size += 2 * LogFile.INT_SIZE + 2 * before[r].length;
+        return size;
+    }
+
+    /**
+     * Write the changed ranges: their number, then for each range its offset,
+     * its length, its before bytes and its after bytes.
+     */
+    void writeRanges(ByteBuffer buf) {
+        buf.putInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            buf.putInt(offsets[r]);
+            buf.putInt(before[r].length);
+            buf.put(before[r]);
+            buf.put(after[r]);
+        }
+    }
+
+    /** Read the ranges written by writeRanges for the given page. */
+    static PageDelta readRanges(DataInput in, Class<?> pageClass, PageId pid) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageClass, pid, offsets, before, after);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PageLatch is the short-term read/write latch of a page frame, held while
+ * a page is physically read or changed. It is not a transactional lock:
+ * it is never held across operators, knows nothing about transactions and
+ * is not seen by the deadlock detector, so latches must be taken in an
+ * order that can't deadlock (e.g. parents before children).
+ * <p>
+ * Latches are held for a few microseconds, so a thread that can't get one
+ * first spins for a while, and only parks if the latch is still busy
+ * after that.
+ *
+ * @Threadsafe
+ */
+public class PageLatch {
+
+    /** Number of times a thread retries before it parks. */
+    public static final int SPIN_LIMIT = 64;
+
+    // number of threads holding the latch shared, or -1 while held exclusive
+    private final AtomicInteger state = new AtomicInteger(0);
+    // parked threads, woken up on every release
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /** Get the latch shared, waiting while it is held exclusive. */
+    public void acquireShared() {
+        acquire(false);
+    }
+
+    /** Get the latch exclusive, waiting while anybody else holds it. */
+    public void acquireExclusive() {
+        acquire(true);
+    }
+
+    public void releaseShared() {
+        state.decrementAndGet();
+        wakeUp();
+    }
+
+    public void releaseExclusive() {
+        state.set(0);
+        wakeUp();
+    }
+
+    /**
+     * @return true if nobody holds the latch
+     */
+    public boolean isFree() {
+        return state.get() == 0;
+    }
+
+    private boolean tryAcquire(boolean exclusive) {
+        int s = state.get();
+        if (exclusive)
+            return s == 0 && state.compareAndSet(0, -1);
+        return s >= 0 && state.compareAndSet(s, s + 1);
+    }
+
+    private void acquire(boolean exclusive) {
+        for (int spins = 0; spins < SPIN_LIMIT; spins++) {
+            if (tryAcquire(exclusive))
+                return;
+        }
+        Thread me = Thread.currentThread();
+        waiters.add(me);
+        try {
+            // a release between the last try and park leaves a permit, so
+            // the wake-up isn't lost
+            while (!tryAcquire(exclusive))
+                LockSupport.park(this);
+        } finally {
+            waiters.remove(me);
+        }
+    }
+
+    private void wakeUp() {
+        for (Thread t : waiters)
+            LockSupport.unpark(t);
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * PageLsnMap records the LSN every page of a table file had when it was last
+ * written, i.e. the LSN of the last log record whose change the page on disk
+ * contains. Recovery compares it with the LSNs of the log records of the
+ * page, and skips the changes the page has already.
+ * <p>
+ * The map is kept in a side file next to the table file, with one eight-byte
+ * entry per page, so that the pages themselves keep their layout. The entry
+ * of a page is written after the page: a crash in between leaves an entry
+ * older than the page, never newer, and recovery then redoes changes the
+ * page has, which writes the same bytes again. Pages without an entry have
+ * LSN 0.
+ *
+ * @Threadsafe
+ */
+public class PageLsnMap {
+
+    private static final int ENTRY_SIZE = 8;
+
+    private final File file;
+
+    /**
+     * @param tableFile the table file this map describes
+     */
+    public PageLsnMap(File tableFile) {
+        this.file = sideFile(tableFile);
+    }
+
+    /**
+     * @return the side file the map of a table file is stored in
+     */
+    public static File sideFile(File tableFile) {
+        return new File(tableFile.getPath() + ".lsn");
+    }
+
+    /**
+     * Record in the side file the LSN of a page that was just written to the
+     * table file.
+     */
+    public void pageWritten(int pgNo, long lsn) throws IOException {
+        byte[] entry = new byte[ENTRY_SIZE];
+        for (int i = 0; i < ENTRY_SIZE; i++)
+            entry[i] = (byte) (lsn >>> (8 * (ENTRY_SIZE - 1 - i)));
+        Database.getCatalog().getFileHandles().write(file, entry, (long) pgNo * ENTRY_SIZE);
+    }
+
+    /**
+     * @return the LSN of a page on disk, 0 if it has no entry
+     */
+    public long getLSN(int pgNo) throws IOException {
+        long position = (long) pgNo * ENTRY_SIZE;
+        if (file.length() < position + ENTRY_SIZE)
+            return 0;
+        byte[] entry = new byte[ENTRY_SIZE];
+        Database.getCatalog().getFileHandles().readFully(file, entry, position);
+        long lsn = 0;
+        for (int i = 0; i < ENTRY_SIZE; i++)
+            lsn = (lsn << 8) | (entry[i] & 0xFF);
+        return lsn;
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PagePrefetcher reads pages into the BufferPool ahead of a sequential scan
+ * on a background thread, so that the scan finds them cached instead of
+ * waiting on the disk for every page.
+ * <p>
+ * Iterators that detect sequential access call {@link #prefetch} for the
+ * pages they are about to read, or {@link #prefetchLeafChain} to follow the
+ * right-sibling pointers of B+ tree leaves. Prefetched pages are installed
+ * without any lock and are never dirty, so they are ordinary eviction
+ * candidates. The prefetcher counts the pages it read that were used later
+ * (hits) and the ones that were evicted or dropped before being used (waste).
+ * <p>
+ * Read-ahead is off until a depth greater than 0 is set.
+ *
+ * @Threadsafe
+ */
+public class PagePrefetcher {
+
+    /** Default number of pages read ahead of a scan; 0 disables read-ahead. */
+    public static final int DEFAULT_DEPTH = 0;
+
+    /** Number of consecutive pages an iterator must read before read-ahead starts. */
+    public static final int SEQUENTIAL_THRESHOLD = 2;
+
+    // requests beyond this are dropped, read-ahead is only a hint
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+
+    private final BufferPool bufferPool;
+    private volatile int depth;
+    private final ThreadPoolExecutor executor;
+    // pages queued for read-ahead
+    private final Set<PageId> pending;
+    // pages read ahead that have not been requested yet
+    private final Set<PageId> unused;
+    private final AtomicLong issued;
+    private final AtomicLong hits;
+    private final AtomicLong wasted;
+
+    PagePrefetcher(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.depth = DEFAULT_DEPTH;
+        pending = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+        unused = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+        issued = new AtomicLong(0);
+        hits = new AtomicLong(0);
+        wasted = new AtomicLong(0);
+        executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-prefetcher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        pending.remove(((PrefetchTask) r).pid);
+                    }
+                });
+        // don't keep a thread around for buffer pools that are not scanned any more
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return the number of pages read ahead of a scan, 0 if read-ahead is off */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Set the number of pages read ahead of a scan.
+     * @param depth the read-ahead depth; 0 disables read-ahead
+     */
+    public void setDepth(int depth) {
+        if (depth < 0)
+            throw new IllegalArgumentException("read-ahead depth must not be negative");
+        this.depth = depth;
+    }
+
+    /** @return the number of pages read by the prefetcher */
+    public long getIssued() {
+        return issued.get();
+    }
+
+    /** @return the number of prefetched pages that were requested afterwards */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of prefetched pages evicted or dropped before being requested */
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    /** Reset the hit, waste and issue counters. */
+    public void resetCounters() {
+        issued.set(0);
+        hits.set(0);
+        wasted.set(0);
+    }
+
+    /**
+     * Queue an asynchronous read of a page into the buffer pool. Does
+     * nothing if read-ahead is off or the page is already queued.
+     *
+     * @param pid a page that exists in its file
+     */
+    public void prefetch(PageId pid) {
+        submit(pid, 0);
+    }
+
+    /**
+     * Queue asynchronous reads of a B+ tree leaf and of the right siblings
+     * following it, up to the read-ahead depth.
+     *
+     * @param pid the first leaf to read, may be null
+     */
+    public void prefetchLeafChain(BTreePageId pid) {
+        submit(pid, depth - 1);
+    }
+
+    /** Called by the buffer pool when a page is requested. */
+    void pageRequested(PageId pid) {
+        if (unused.remove(pid))
+            hits.incrementAndGet();
+    }
+
+    /** Called by the buffer pool right before it installs a page read ahead. */
+    void pageReadAhead(PageId pid) {
+        issued.incrementAndGet();
+        unused.add(pid);
+    }
+
+    /** Called by the buffer pool when a page leaves the pool. */
+    void pageEvicted(PageId pid) {
+        if (unused.remove(pid))
+            wasted.incrementAndGet();
+    }
+
+    private void submit(PageId pid, int followSiblings) {
+        if (pid == null || depth == 0 || !pending.add(pid))
+            return;
+        executor.execute(new PrefetchTask(pid, followSiblings));
+    }
+
+    private class PrefetchTask implements Runnable {
+        final PageId pid;
+        final int followSiblings;
+
+        PrefetchTask(PageId pid, int followSiblings) {
+            this.pid = pid;
+            this.followSiblings = followSiblings;
+        }
+
+        public void run() {
+            Page page;
+            try {
+                page = bufferPool.readAhead(pid);
+                if (page != null) {
+                    if (!bufferPool.makeRoomAfterReadAhead(pid) && unused.remove(pid)) {
+                        // every other page is pinned, give the frame back
+                        bufferPool.discardPage(pid);
+                        wasted.incrementAndGet();
+                    }
+                } else {
+                    page = bufferPool.peekPage(pid);
+                }
+            } catch (DbException e) {
+                page = null;
+            } catch (RuntimeException e) {
+                // the page went away (e.g. the table was dropped), it was only a hint
+                page = null;
+            } finally {
+                pending.remove(pid);
+            }
+            if (followSiblings > 0 && page instanceof BTreeLeafPage)
+                submit(((BTreeLeafPage) page).getRightSiblingId(), followSiblings - 1);
+        }
+    }
+}
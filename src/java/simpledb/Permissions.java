@@ -3,7 +3,8 @@ package simpledb;
 /**
  * Class representing requested permissions to a relation/file.
  * Private constructor with two static objects READ_ONLY and READ_WRITE that
- * represent the two levels of permission.
+ * represent the two levels of permission, and TUPLE_WRITE for a page some
+ * tuples of which are written.
  */
 public class Permissions {
   int permLevel;
@@ -17,10 +18,18 @@ public class Permissions {
       return "READ_ONLY";
     if (permLevel == 1)
       return "READ_WRITE";
+    if (permLevel == 2)
+      return "TUPLE_WRITE";
     return "UNKNOWN";
   }
 
   public static final Permissions READ_ONLY = new Permissions(0);
   public static final Permissions READ_WRITE = new Permissions(1);
+  /**
+   * Write single tuples of a page, each of them locked with
+   * BufferPool.lockTuple. Other transactions may write other tuples of the
+   * page at the same time, but nobody can read it.
+   */
+  public static final Permissions TUPLE_WRITE = new Permissions(2);
 
 }
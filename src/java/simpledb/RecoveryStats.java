@@ -0,0 +1,89 @@
+package simpledb;
+
+/**
+ * RecoveryStats reports how long the phases of a recovery took and how much
+ * work they did, see {@link LogFile#recover}. Analysis reads the log; redo
+ * repeats the changes the pages on disk don't have yet, and undo rolls back
+ * the changes of the transactions that didn't finish. Redo and undo run on
+ * several threads, each taking the pages of its own partition.
+ *
+ * @Threadsafe, all fields are final
+ */
+public class RecoveryStats {
+
+    private final int threads;
+    private final long analysisMillis;
+    private final long redoMillis;
+    private final long undoMillis;
+    private final int changesRead;
+    private final int changesRedone;
+    private final int pagesRedone;
+    private final int losers;
+    private final int pagesUndone;
+
+    RecoveryStats(int threads, long analysisMillis, long redoMillis, long undoMillis,
+                  int changesRead, int changesRedone, int pagesRedone,
+                  int losers, int pagesUndone) {
+        this.threads = threads;
+        this.analysisMillis = analysisMillis;
+        this.redoMillis = redoMillis;
+        this.undoMillis = undoMillis;
+        this.changesRead = changesRead;
+        this.changesRedone = changesRedone;
+        this.pagesRedone = pagesRedone;
+        this.losers = losers;
+        this.pagesUndone = pagesUndone;
+    }
+
+    /** @return the number of threads redo and undo ran on */
+    public int getThreads() {
+        return threads;
+    }
+
+    /** @return the time spent reading the log, in milliseconds */
+    public long getAnalysisMillis() {
+        return analysisMillis;
+    }
+
+    /** @return the time spent redoing changes, in milliseconds */
+    public long getRedoMillis() {
+        return redoMillis;
+    }
+
+    /** @return the time spent undoing changes, in milliseconds */
+    public long getUndoMillis() {
+        return undoMillis;
+    }
+
+    /** @return the number of page changes read from the log */
+    public int getChangesRead() {
+        return changesRead;
+    }
+
+    /** @return the number of page changes redone */
+    public int getChangesRedone() {
+        return changesRedone;
+    }
+
+    /** @return the number of pages written by redo */
+    public int getPagesRedone() {
+        return pagesRedone;
+    }
+
+    /** @return the number of transactions rolled back */
+    public int getLosers() {
+        return losers;
+    }
+
+    /** @return the number of pages written by undo */
+    public int getPagesUndone() {
+        return pagesUndone;
+    }
+
+    public String toString() {
+        return "recovery on " + threads + " threads: analysis " + analysisMillis + " ms ("
+            + changesRead + " changes), redo " + redoMillis + " ms (" + changesRedone
+            + " changes, " + pagesRedone + " pages), undo " + undoMillis + " ms ("
+            + losers + " transactions, " + pagesUndone + " pages)";
+    }
+}
@@ -34,10 +34,30 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, false);
+    }
+
+    /**
+     * Creates a sequential scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser).
+     * @param useBufferRing
+     *            if true, pages that are not cached in the buffer pool are
+     *            read into a small private {@link BufferRing} instead of the
+     *            pool. Meant for large scans that would otherwise evict the
+     *            pages other transactions are working on.
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, boolean useBufferRing) {
         // some code goes here
         init(tid, tableid, tableAlias);
-        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.dbIter = hf.iterator(tid);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        this.dbIter = (useBufferRing ? f.iterator(tid, new BufferRing()) : f.iterator(tid));
     }
 
     private void init(TransactionId tid, int tableId, String tableAlias) {
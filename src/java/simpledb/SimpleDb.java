@@ -7,6 +7,15 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // convert --btree <keyField> ... builds a B+ tree from input sorted on keyField
+            int keyField = -1;
+            if (args.length > 2 && args[1].equals("--btree")) {
+                keyField = Integer.parseInt(args[2]);
+                String[] rest = new String[args.length - 2];
+                rest[0] = args[0];
+                System.arraycopy(args, 3, rest, 1, args.length - 3);
+                args = rest;
+            }
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -43,7 +52,15 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+            if (keyField >= 0) {
+                if (keyField >= numOfAttributes) {
+                    System.err.println("The key field must be one of the columns");
+                    return;
+                }
+                BTreeFileEncoder.convertSorted(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator,keyField);
+            } else
+                HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
                         BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
 
         } catch (IOException e) {
@@ -25,6 +25,15 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it reads the database
+     * as of now without taking locks, see {@link BufferPool#beginSnapshot}.
+     */
+    public void startReadOnly() {
+        Database.getBufferPool().beginSnapshot(tid);
+        start();
+    }
+
     public TransactionId getId() {
         return tid;
     }
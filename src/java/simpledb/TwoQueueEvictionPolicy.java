@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). A page that is read for the first
+ * time goes into a FIFO queue A1in, and further accesses while it is there
+ * don't change its position. When a page leaves A1in its id is remembered in
+ * the ghost queue A1out; if it is read again while still remembered it is
+ * cached in Am, an LRU list of pages that are really re-used.
+ * <p>
+ * Victims are taken from A1in while it holds more than its share of the
+ * pages, so a long sequential scan only cycles through A1in and leaves the
+ * hot pages in Am (such as B+ tree internal pages) alone.
+ * <p>
+ * In a striped BufferPool every stripe has its own A1in and Am, but the
+ * stripes share one {@link Queues}: the size of A1in is counted and its
+ * target computed over the whole pool, and A1out is a single queue. A stripe
+ * whose own A1in is empty while the pool's A1in is over its target doesn't
+ * give up a page of Am; see {@link #chooseColdVictim}.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * The state shared by the policies of all the stripes of a pool.
+     * A1out is guarded by the monitor of this object, which is only taken
+     * under a stripe monitor and never the other way round.
+     */
+    static class Queues {
+        // target size of A1in and maximum size of A1out
+        private final int kin;
+        private final int kout;
+        private final AtomicInteger a1inSize;
+        private final LinkedHashMap<PageId, Boolean> a1out;
+
+        /**
+         * @param capacity the number of pages of the whole pool
+         */
+        Queues(int capacity) {
+            kin = Math.max(1, capacity / 4);
+            kout = Math.max(1, capacity / 2);
+            a1inSize = new AtomicInteger(0);
+            a1out = new LinkedHashMap<>();
+        }
+
+        boolean a1inOverTarget() {
+            return a1inSize.get() > kin;
+        }
+
+        synchronized void remember(PageId pid) {
+            a1out.put(pid, Boolean.TRUE);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+
+        /** @return true if pid was remembered in A1out */
+        synchronized boolean forget(PageId pid) {
+            return a1out.remove(pid) != null;
+        }
+    }
+
+    private final Queues queues;
+    private final LinkedHashMap<PageId, Boolean> a1in;
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    /**
+     * @param capacity the number of pages the policy is used for alone
+     */
+    public TwoQueueEvictionPolicy(int capacity) {
+        this(new Queues(capacity));
+    }
+
+    /**
+     * @param queues the sizes and A1out shared with the other stripes of a pool
+     */
+    TwoQueueEvictionPolicy(Queues queues) {
+        this.queues = queues;
+        a1in = new LinkedHashMap<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public void pageAdded(PageId pid) {
+        if (queues.forget(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.put(pid, Boolean.TRUE);
+            queues.a1inSize.incrementAndGet();
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // touches Am's access order; pages in A1in keep their FIFO position
+        am.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid) != null)
+            queues.a1inSize.decrementAndGet();
+        else
+            am.remove(pid);
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim;
+        if (queues.a1inOverTarget() || am.isEmpty()) {
+            victim = evictFromA1in(evictable);
+            if (victim != null)
+                return victim;
+            return evictFrom(am, evictable);
+        }
+        victim = evictFrom(am, evictable);
+        if (victim != null)
+            return victim;
+        return evictFromA1in(evictable);
+    }
+
+    /**
+     * While the pool's A1in is over its target, only pages of A1in are
+     * given up, and null is returned if this stripe has none that is
+     * evictable, so that the pool takes one from another stripe instead.
+     */
+    public PageId chooseColdVictim(Predicate<PageId> evictable) {
+        if (queues.a1inOverTarget())
+            return evictFromA1in(evictable);
+        return chooseVictim(evictable);
+    }
+
+    public int size() {
+        return a1in.size() + am.size();
+    }
+
+    private PageId evictFromA1in(Predicate<PageId> evictable) {
+        PageId victim = evictFrom(a1in, evictable);
+        if (victim != null) {
+            queues.a1inSize.decrementAndGet();
+            queues.remember(victim);
+        }
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashMap<PageId, Boolean> queue, Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
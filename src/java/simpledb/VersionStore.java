@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * VersionStore lets read-only transactions read the database as of the
+ * moment they started, without taking any lock, by keeping the committed
+ * images of pages that newer commits have replaced.
+ * <p>
+ * Every commit that writes pages gets a commit timestamp, and every
+ * snapshot transaction gets the timestamp of the last commit that started
+ * before it. The committed image of a page is the before image of its
+ * cached copy, or the page on disk. When a commit replaces it while
+ * snapshots are running, the old image is kept along with the timestamps
+ * it was current between, until no running snapshot can need it anymore.
+ * <p>
+ * A commit marks all its pages at once when it gets its timestamp; a
+ * snapshot reading a marked page waits for the page to be written if the
+ * commit is part of its snapshot, and reads the kept image otherwise.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    // a replaced committed image of a page
+    private static class Version {
+        final long validFrom;
+        final long validUntil;
+        final Page image;
+
+        Version(long validFrom, long validUntil, Page image) {
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+            this.image = image;
+        }
+    }
+
+    // the commit history of a page, guarded by its monitor
+    private static class PageVersions {
+        // timestamp of the commit that wrote the current committed image
+        long committedTs = 0;
+        // timestamp of the commit writing the page right now, or 0
+        long pending = 0;
+        // older committed images, oldest first
+        final List<Version> older = new ArrayList<>();
+        // set once the entry is dropped from the map
+        boolean removed = false;
+    }
+
+    private final BufferPool pool;
+    private final ConcurrentMap<PageId, PageVersions> pages;
+    private final ConcurrentMap<TransactionId, Long> snapshots;
+    // guarded by this: the last commit timestamp given out, and how many
+    // running snapshots there are per timestamp
+    private long clock;
+    private final TreeMap<Long, Integer> active;
+
+    /**
+     * @param pool the buffer pool the committed images are read through
+     */
+    VersionStore(BufferPool pool) {
+        this.pool = pool;
+        this.pages = new ConcurrentHashMap<>();
+        this.snapshots = new ConcurrentHashMap<>();
+        this.clock = 0;
+        this.active = new TreeMap<>();
+    }
+
+    /**
+     * Start a snapshot for a read-only transaction.
+     */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+        active.merge(clock, 1, Integer::sum);
+    }
+
+    /**
+     * @return the timestamp of the snapshot of tid, or null if tid is not a
+     *         snapshot transaction
+     */
+    Long getSnapshot(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * End the snapshot of a transaction and drop the images only it needed.
+     *
+     * @return false if tid is not a snapshot transaction
+     */
+    boolean endSnapshot(TransactionId tid) {
+        Long ts = snapshots.remove(tid);
+        if (ts == null)
+            return false;
+        synchronized (this) {
+            active.computeIfPresent(ts, (k, n) -> n > 1 ? n - 1 : null);
+        }
+        collect(pages.keySet());
+        return true;
+    }
+
+    /**
+     * Give a commit its timestamp and mark the pages it is about to write.
+     * Must be called with the pages still holding their old before image,
+     * and followed by {@link #endCommit} once they are written.
+     *
+     * @param written the pages of the committing transaction whose committed
+     *                image changes
+     * @return the commit timestamp
+     */
+    synchronized long beginCommit(Collection<Page> written) {
+        // transactions writing different tuples of a page commit one by one
+        boolean interrupted = false;
+        while (isPending(written)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        long ts = ++clock;
+        boolean keep = !active.isEmpty();
+        for (Page p : written) {
+            while (true) {
+                PageVersions v = pages.computeIfAbsent(p.getId(), k -> new PageVersions());
+                synchronized (v) {
+                    if (v.removed)
+                        continue;
+                    v.pending = ts;
+                    // every running snapshot is older than this commit
+                    if (keep)
+                        v.older.add(new Version(v.committedTs, ts, p.getBeforeImage()));
+                    break;
+                }
+            }
+        }
+        return ts;
+    }
+
+    /**
+     * The pages of a commit are written, or the commit failed.
+     */
+    void endCommit(long ts, Collection<Page> written) {
+        List<PageId> pids = new ArrayList<>();
+        for (Page p : written) {
+            PageVersions v = pages.get(p.getId());
+            synchronized (v) {
+                v.committedTs = ts;
+                v.pending = 0;
+                v.notifyAll();
+            }
+            pids.add(p.getId());
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        collect(pids);
+    }
+
+    // true if a commit is writing one of the pages
+    private boolean isPending(Collection<Page> written) {
+        for (Page p : written) {
+            PageVersions v = pages.get(p.getId());
+            if (v != null) {
+                synchronized (v) {
+                    if (v.pending != 0)
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the image of a page a snapshot sees.
+     */
+    Page read(PageId pid, long snapshot) throws DbException, TransactionAbortedException {
+        while (true) {
+            PageVersions v = pages.computeIfAbsent(pid, k -> new PageVersions());
+            synchronized (v) {
+                if (v.removed)
+                    continue;
+                try {
+                    // a commit that is part of the snapshot is being written
+                    while (v.pending != 0 && v.pending <= snapshot)
+                        v.wait();
+                } catch (InterruptedException e) {
+                    throw new TransactionAbortedException();
+                }
+                if (v.pending == 0 && v.committedTs <= snapshot)
+                    return pool.readCommitted(pid);
+                for (Version old : v.older) {
+                    if (old.validFrom <= snapshot && snapshot < old.validUntil)
+                        return old.image;
+                }
+                throw new DbException("no version of page " + pid + " as of " + snapshot);
+            }
+        }
+    }
+
+    /**
+     * @return the number of replaced page images kept
+     */
+    int numVersions() {
+        int n = 0;
+        for (PageVersions v : pages.values()) {
+            synchronized (v) {
+                n += v.older.size();
+            }
+        }
+        return n;
+    }
+
+    // drop the images of the given pages no running snapshot can read, and
+    // the entries that don't tell anything anymore
+    private void collect(Iterable<PageId> pids) {
+        long oldest;
+        synchronized (this) {
+            // snapshots started from now on see everything given out so far
+            oldest = (active.isEmpty() ? clock : active.firstKey());
+        }
+        for (PageId pid : pids) {
+            PageVersions v = pages.get(pid);
+            if (v == null)
+                continue;
+            synchronized (v) {
+                for (Iterator<Version> it = v.older.iterator(); it.hasNext(); ) {
+                    if (it.next().validUntil <= oldest)
+                        it.remove();
+                }
+                if (v.pending == 0 && v.older.isEmpty() && v.committedTs <= oldest && !v.removed) {
+                    v.removed = true;
+                    pages.remove(pid, v);
+                }
+            }
+        }
+    }
+}
@@ -3,6 +3,9 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.Predicate.Op;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.util.*;
 
 import org.junit.After;
@@ -201,6 +204,175 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFileEncoder.convertSorted()
+	 */
+	@Test public void convertSorted() throws Exception {
+		File in = File.createTempFile("sorted", ".txt");
+		in.deleteOnExit();
+		File out = File.createTempFile("sorted", ".dat");
+		out.deleteOnExit();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+		for (int i = 0; i < 5000; i++)
+			bw.write((i / 2) + "," + i + "\n");
+		bw.close();
+		Type[] types = new Type[] {Type.INT_TYPE, Type.INT_TYPE};
+		BTreeFile bf = BTreeFileEncoder.convertSorted(in, out, BufferPool.getPageSize(), 2, types, ',', 0);
+
+		// walk down to the left-most leaf, then along the leaves
+		BTreePageId pid = ((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+		assertEquals(BTreePageId.INTERNAL, pid.pgcateg());
+		while (pid.pgcateg() == BTreePageId.INTERNAL)
+			pid = ((BTreeInternalPage) bf.readPage(pid)).iterator().next().getLeftChild();
+		int count = 0;
+		while (pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(pid);
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext()) {
+				assertEquals(count, ((IntField) it.next().getField(1)).getValue());
+				count++;
+			}
+			pid = leaf.getRightSiblingId();
+		}
+		assertEquals(5000, count);
+
+		// unsorted input is rejected
+		bw = new BufferedWriter(new FileWriter(in));
+		bw.write("2,0\n1,0\n");
+		bw.close();
+		try {
+			BTreeFileEncoder.convertSorted(in, out, BufferPool.getPageSize(), 2, types, ',', 0);
+			fail("expected exception");
+		} catch (DbException e) {
+		}
+	}
+
+	/**
+	 * An index search locks the leaf it reads, but neither the root pointer page nor
+	 * the internal pages it passes on the way down, and leaves them unlatched.
+	 */
+	@Test public void searchLocksLeafOnly() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) bigFile.readPage(rootPtrId)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		DbFileIterator it = bigFile.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0)));
+		it.open();
+		Tuple t = it.next();
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		Page root = bp.getLatchedPage(rootId, false);
+		root.getLatch().releaseShared();
+		assertTrue(root.getLatch().isFree());
+		it.close();
+	}
+
+	/**
+	 * Start a search for key in a new thread, and return once it waits for a lock.
+	 */
+	private Thread startSearch(final BTreeFile bf, final TransactionId searcher, final Field key,
+			final BTreeLeafPage[] found, final Exception[] failed) throws InterruptedException {
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					found[0] = bf.findLeafPage(searcher, new HashMap<PageId, Page>(), Permissions.READ_ONLY, key);
+				} catch (Exception e) {
+					failed[0] = e;
+				}
+			}
+		};
+		t.start();
+		while(t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING
+				&& t.isAlive()) {
+			Thread.sleep(10);
+		}
+		return t;
+	}
+
+	private static boolean containsKey(BTreeLeafPage leaf, Field key) {
+		Iterator<Tuple> it = leaf.iterator();
+		while(it.hasNext()) {
+			if(it.next().getField(0).equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A search waiting for a leaf that is split meanwhile moves right to the new page.
+	 */
+	@Test public void searchPassesConcurrentSplit() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createBTreeFile(2, 2000, null, null, 0);
+		BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage leaf = bigFile.findLeafPage(tid, dirtypages, Permissions.READ_WRITE, null);
+		Field key = leaf.reverseIterator().next().getField(0);
+		long restarts = bigFile.getDescentRestarts();
+
+		TransactionId searcher = new TransactionId();
+		BTreeLeafPage[] found = new BTreeLeafPage[1];
+		Exception[] failed = new Exception[1];
+		Thread search = startSearch(bigFile, searcher, key, found, failed);
+
+		bigFile.splitLeafPage(tid, dirtypages, leaf, key);
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+			bp.putPage(p.getId(), p);
+		}
+		bp.transactionComplete(tid);
+		search.join();
+		try {
+			assertNull(failed[0]);
+			assertFalse(leaf.getId().equals(found[0].getId()));
+			assertTrue(containsKey(found[0], key));
+			assertEquals(restarts, bigFile.getDescentRestarts());
+		} finally {
+			bp.transactionComplete(searcher);
+		}
+	}
+
+	/**
+	 * A search waiting for a leaf that is merged or refilled from its sibling meanwhile
+	 * repeats its descent pessimistically.
+	 */
+	@Test public void searchRestartsAfterConcurrentMerge() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createBTreeFile(2, 2000, null, null, 0);
+		BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeLeafPage leaf = bigFile.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_WRITE, null);
+		Field key = leaf.reverseIterator().next().getField(0);
+		long restarts = bigFile.getDescentRestarts();
+
+		// the lowest tuples to delete to take the leaf below minimum occupancy
+		ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+		Iterator<Tuple> it = leaf.iterator();
+		int remove = leaf.getNumTuples() - leaf.getMaxTuples()/2 + 1;
+		while(deleted.size() < remove) {
+			deleted.add(it.next());
+		}
+
+		TransactionId searcher = new TransactionId();
+		BTreeLeafPage[] found = new BTreeLeafPage[1];
+		Exception[] failed = new Exception[1];
+		Thread search = startSearch(bigFile, searcher, key, found, failed);
+
+		for(Tuple t : deleted) {
+			bp.deleteTuple(tid, t);
+		}
+		bp.transactionComplete(tid);
+		search.join();
+		try {
+			assertNull(failed[0]);
+			assertTrue(containsKey(found[0], key));
+			assertEquals(restarts + 1, bigFile.getDescentRestarts());
+		} finally {
+			bp.transactionComplete(searcher);
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -15,6 +15,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -116,6 +117,32 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.setRightSiblingId() and BTreePage.setHighKey()
+	 */
+	@Test public void setRightSiblingIdAndHighKey() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertNull(page.getRightSiblingId());
+		assertNull(page.getHighKey());
+
+		BTreePageId id = new BTreePageId(pid.getTableId(), 2, BTreePageId.INTERNAL);
+		page.setRightSiblingId(id);
+		page.setHighKey(new IntField(70000));
+
+		// both survive a round trip through the page data
+		page = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(id, page.getRightSiblingId());
+		assertEquals(new IntField(70000), page.getHighKey());
+
+		id = new BTreePageId(pid.getTableId(), 2, BTreePageId.LEAF);
+		try {
+			page.setRightSiblingId(id);
+			throw new Exception("should not be able to set rightSiblingId to leaf node; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.iterator()
 	 */
@@ -166,12 +193,47 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty slots
+	 * between its entries
+	 */
+	@Test public void testReverseIteratorWithEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every other entry
+		Iterator<BTreeEntry> it = page.iterator();
+		ArrayList<BTreeEntry> deleted = new ArrayList<BTreeEntry>();
+		while (it.hasNext()) {
+			deleted.add(it.next());
+			if (it.hasNext())
+				it.next();
+		}
+		for (BTreeEntry e : deleted)
+			page.deleteKeyAndRightChild(e);
+
+		LinkedList<BTreeEntry> entries = new LinkedList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.addFirst(it.next());
+
+		it = page.reverseIterator();
+		for (BTreeEntry expected : entries) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 	}
 
 	/**
@@ -184,7 +246,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 21; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 21; i < 504; ++i)
+		for (int i = 21; i < 502; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -238,7 +300,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 501 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Multi-threaded throughput benchmark for the BufferPool page table.
+ * Every thread scans random pages of its own table through
+ * BufferPool.getPage, with a pool much smaller than the tables so that most
+ * accesses miss. The run is repeated with a single-stripe page table (one
+ * LRU list behind one lock, i.e. the old Pool) and a striped one.
+ * <p>
+ * Not a unit test; run it by hand:
+ * <pre>
+ *     java -cp ... simpledb.BufferPoolBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class BufferPoolBenchmark {
+    private static final int PAGES_PER_TABLE = 64;
+    private static final int PAGES_PER_TRANSACTION = 4;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<HeapFile> tables = new ArrayList<HeapFile>();
+        for (int i = 0; i < threads; i++) {
+            tables.add(SystemTestUtil.createRandomHeapFile(2, 504 * PAGES_PER_TABLE, null, null));
+        }
+
+        // locked pages can't be evicted, leave room for every running transaction
+        int poolPages = 2 * threads * PAGES_PER_TRANSACTION;
+        System.out.println("threads: " + threads + ", pool pages: " + poolPages
+                + ", pages per table: " + PAGES_PER_TABLE);
+        for (int stripes : new int[] {1, BufferPool.DEFAULT_STRIPES}) {
+            Database.resetBufferPool(poolPages, stripes);
+            run(tables, 1, stripes); // warm up
+            long pages = run(tables, seconds, stripes);
+            System.out.printf("stripes %2d: %10.0f pages/s%n", stripes, pages / (double) seconds);
+        }
+    }
+
+    private static long run(final List<HeapFile> tables, int seconds, int stripes)
+            throws InterruptedException {
+        final AtomicLong pagesRead = new AtomicLong(0);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[tables.size()];
+        for (int i = 0; i < workers.length; i++) {
+            final HeapFile table = tables.get(i);
+            workers[i] = new Thread() {
+                public void run() {
+                    Random rand = new Random(table.getId());
+                    BufferPool bp = Database.getBufferPool();
+                    long n = 0;
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            TransactionId tid = new TransactionId();
+                            for (int j = 0; j < PAGES_PER_TRANSACTION; j++) {
+                                PageId pid = new HeapPageId(table.getId(), rand.nextInt(PAGES_PER_TABLE));
+                                bp.getPage(tid, pid, Permissions.READ_ONLY);
+                                n++;
+                            }
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    pagesRead.addAndGet(n);
+                }
+            };
+        }
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        return pagesRead.get();
+    }
+}
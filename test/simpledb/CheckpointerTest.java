@@ -0,0 +1,233 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CheckpointerTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+    private Checkpointer cp;
+
+    @Before public void setUp() throws IOException {
+        f = File.createTempFile("checkpointer", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+        cp = log.getCheckpointer();
+    }
+
+    @After public void tearDown() {
+        log.shutdown();
+        LogSegments.delete(f);
+        f.delete();
+    }
+
+    // wait up to ten seconds for a counter to reach n
+    private static boolean await(LongSupplier counter, long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (counter.getAsLong() < n && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        return counter.getAsLong() >= n;
+    }
+
+    /** Checkpoints are taken periodically once an interval is set. */
+    @Test public void periodicCheckpoints() throws Exception {
+        assertEquals(Checkpointer.DEFAULT_CHECKPOINT_INTERVAL_MILLIS, cp.getCheckpointIntervalMillis());
+        cp.setCheckpointIntervalMillis(5);
+        assertTrue(await(cp::getCheckpoints, 2));
+        cp.stop();
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        long checkpoint;
+        try {
+            checkpoint = raf.readLong();
+        } finally {
+            raf.close();
+        }
+        assertTrue(checkpoint != LogFile.NO_CHECKPOINT_ID);
+        LogSegments in = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+        try {
+            in.seek(checkpoint);
+            assertEquals(LogFile.CHECKPOINT_RECORD, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    /** The background writer writes dirty pages in batches. */
+    @Test public void writerWritesDirtyPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(hf.numPages() >= 3);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            Page p = Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+
+        Checkpointer writer = Database.getLogFile().getCheckpointer();
+        writer.setWriterBatchSize(2);
+        assertEquals(2, writer.getWriterBatchSize());
+        long written = writer.getPagesWritten();
+        writer.setWriterIntervalMillis(5);
+        try {
+            assertTrue(await(writer::getPagesWritten, written + 3));
+        } finally {
+            writer.stop();
+        }
+        for (int i = 0; i < 3; i++) {
+            Page p = Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            assertNull(p.isDirty());
+        }
+        assertEquals(0, Database.getBufferPool().flushDirtyPages(1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The writer leaves B+ tree pages with uncommitted changes dirty, so
+     * they are never evicted and a snapshot reading their committed image
+     * doesn't find the changes on disk.
+     */
+    @Test public void writerSkipsBTreePages() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 42, 43 }));
+        List<Page> changed = new ArrayList<>();
+        for (Page p : bp.getAllPages()) {
+            if (p.getId() instanceof BTreePageId && tid.equals(p.isDirty()))
+                changed.add(p);
+        }
+        assertFalse(changed.isEmpty());
+        Page heap = bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        heap.markDirty(true, tid);
+
+        Checkpointer writer = Database.getLogFile().getCheckpointer();
+        writer.setWriterBatchSize(100);
+        long written = writer.getPagesWritten();
+        writer.setWriterIntervalMillis(5);
+        try {
+            assertTrue(await(writer::getPagesWritten, written + 1));
+        } finally {
+            writer.stop();
+        }
+        assertNull(heap.isDirty());
+        for (Page p : changed)
+            assertEquals(tid, p.isDirty());
+
+        DbFileIterator it = bf.iterator(reader);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(100, count);
+        bp.transactionComplete(reader);
+        bp.transactionComplete(tid, false);
+    }
+
+    // insert a tuple into page 0 of hf under a page lock, and let the
+    // background writer write the page
+    private HeapPage insertAndSteal(HeapFile hf, Transaction t) throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        p.insertTuple(Utility.getHeapTuple(new int[] { 42, 43 }));
+        p.markDirty(true, t.getId());
+        assertEquals(1, Database.getBufferPool().flushDirtyPages(1));
+        assertNull(p.isDirty());
+        return p;
+    }
+
+    /** A transaction whose page the writer wrote rolls the page back on disk when it aborts. */
+    @Test public void abortAfterSteal() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] committed = hf.readPage(pid).getPageData();
+
+        Transaction t = new Transaction();
+        t.start();
+        insertAndSteal(hf, t);
+        assertFalse(Arrays.equals(committed, hf.readPage(pid).getPageData()));
+        t.abort();
+
+        assertTrue(Arrays.equals(committed, hf.readPage(pid).getPageData()));
+        TransactionId reader = new TransactionId();
+        Page cached = Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+        assertTrue(Arrays.equals(committed, cached.getPageData()));
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * A transaction whose page the writer wrote makes its changes part of
+     * the before image when it commits, so a later abort keeps them.
+     */
+    @Test public void commitAfterSteal() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        Transaction t = new Transaction();
+        t.start();
+        byte[] committed = insertAndSteal(hf, t).getPageData();
+        t.commit();
+        assertTrue(Arrays.equals(committed, hf.readPage(pid).getPageData()));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t2.getId(), pid, Permissions.READ_WRITE);
+        p.deleteTuple(p.iterator().next());
+        p.markDirty(true, t2.getId());
+        t2.abort();
+
+        assertTrue(Arrays.equals(committed, hf.readPage(pid).getPageData()));
+        TransactionId reader = new TransactionId();
+        Page cached = Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+        assertTrue(Arrays.equals(committed, cached.getPageData()));
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    @Test public void invalidSettings() {
+        try {
+            cp.setCheckpointIntervalMillis(-1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            cp.setWriterIntervalMillis(-1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            cp.setWriterBatchSize(0);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(Checkpointer.DEFAULT_WRITER_BATCH_SIZE, cp.getWriterBatchSize());
+        assertEquals(0, cp.getWriterIntervalMillis());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointerTest.class);
+    }
+}
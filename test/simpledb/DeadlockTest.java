@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +214,104 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A younger transaction waiting for an older one is not in a cycle and
+   * must not be aborted.
+   */
+  @Test public void testWaitWithoutDeadlock() throws Exception {
+    LockGrabber lg1Write = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+    assertNull(lg2Write.getError());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2Write.acquired());
+    assertNull(lg2Write.getError());
+  }
+
+  /**
+   * With the LEAST_WORK policy the transaction of a cycle holding the fewest
+   * locks is aborted, even if it is the oldest.
+   * t1 acquires p0.write; t2 acquires p1.write and p2.write; t1 attempts
+   * p1.write; t2 attempts p0.write.
+   */
+  @Test public void testLeastWorkVictim() throws Exception {
+    bp.setDeadlockVictimPolicy(DeadlockDetector.VictimPolicy.LEAST_WORK);
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    startGrabber(tid2, p2, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    assertNotNull(lg1Write.getError());
+    assertTrue(lg2Write.acquired());
+    assertNull(lg2Write.getError());
+  }
+
+  /**
+   * Unit test for the interrupts of the deadlock detector.
+   * A victim aborted by another transaction that then finds itself to be the
+   * victim when it runs the detection fails once, and its thread is not
+   * left interrupted: a stray interrupt would close the files it writes
+   * next, e.g. the log while the transaction aborts.
+   */
+  @Test public void testVictimNotLeftInterrupted() throws Exception {
+    final DeadlockDetector detector = new DeadlockDetector(DeadlockDetector.VictimPolicy.YOUNGEST, t -> 0);
+    final LockState l1 = new LockState("l1", detector);
+    final LockState l2 = new LockState("l2", detector);
+    l1.lock(tid1, LockState.Mode.S);
+    l2.lock(tid2, LockState.Mode.S);
+
+    final boolean[] interrupted = new boolean[1];
+    final Exception[] errors = new Exception[2];
+    Thread older = new Thread() {
+      public void run() {
+        try {
+          l2.lock(tid1, LockState.Mode.X);
+        } catch (Exception e) {
+          errors[0] = e;
+        }
+      }
+    };
+    Thread younger = new Thread() {
+      public void run() {
+        try {
+          l1.lock(tid2, LockState.Mode.X);
+        } catch (Exception e) {
+          errors[1] = e;
+          interrupted[0] = Thread.currentThread().isInterrupted();
+        }
+      }
+    };
+    // both requests are queued, but neither has run the detection yet
+    synchronized (detector) {
+      older.start();
+      younger.start();
+      while (older.getState() != Thread.State.BLOCKED || younger.getState() != Thread.State.BLOCKED)
+        Thread.sleep(10);
+      // the older transaction's detection interrupts the younger one
+      detector.beforeBlocking(tid1);
+    }
+    younger.join();
+    assertTrue(errors[1] instanceof TransactionAbortedException);
+    assertFalse(interrupted[0]);
+
+    l2.unlock(tid2);
+    older.join();
+    assertNull(errors[0]);
+    assertEquals(LockState.Mode.X, l2.getMode(tid1));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final Predicate<PageId> ANY = new Predicate<PageId>() {
+        public boolean test(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Unit test for LRUEvictionPolicy: the least recently accessed page goes first
+     */
+    @Test public void lruOrder() {
+        EvictionPolicy p = EvictionPolicy.Type.LRU.create(4);
+        for (int i = 0; i < 3; i++)
+            p.pageAdded(pid(i));
+        p.pageAccessed(pid(0));
+        assertEquals(pid(1), p.chooseVictim(ANY));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+        assertEquals(pid(0), p.chooseVictim(ANY));
+        assertNull(p.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a referenced page gets a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy p = EvictionPolicy.Type.CLOCK.create(3);
+        for (int i = 0; i < 3; i++)
+            p.pageAdded(pid(i));
+        // the first sweep clears all bits, so page 0 goes first
+        assertEquals(pid(0), p.chooseVictim(ANY));
+        p.pageAdded(pid(3));
+        p.pageAccessed(pid(1));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+        assertEquals(2, p.size());
+    }
+
+    /**
+     * Unit test for the policies: pages that are not evictable are skipped
+     */
+    @Test public void skipsPinnedPages() {
+        for (EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            EvictionPolicy p = type.create(8);
+            for (int i = 0; i < 8; i++)
+                p.pageAdded(pid(i));
+            final PageId free = pid(5);
+            Predicate<PageId> onlyFree = new Predicate<PageId>() {
+                public boolean test(PageId pid) {
+                    return pid.equals(free);
+                }
+            };
+            assertEquals(type.toString(), free, p.chooseVictim(onlyFree));
+            assertNull(type.toString(), p.chooseVictim(onlyFree));
+            p.pageRemoved(pid(0));
+            assertEquals(type.toString(), 6, p.size());
+        }
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a scan does not evict re-used pages
+     */
+    @Test public void twoQueueScanResistance() {
+        int capacity = 16;
+        EvictionPolicy p = EvictionPolicy.Type.TWO_QUEUE.create(capacity);
+        Set<PageId> cached = new HashSet<PageId>();
+        // the hot pages are read, evicted and read again, which promotes them
+        PageId hot0 = pid(-1), hot1 = pid(-2);
+        p.pageAdded(hot0);
+        p.pageAdded(hot1);
+        assertEquals(hot0, p.chooseVictim(ANY));
+        assertEquals(hot1, p.chooseVictim(ANY));
+        p.pageAdded(hot0);
+        p.pageAdded(hot1);
+        cached.add(hot0);
+        cached.add(hot1);
+
+        // a scan much larger than the pool
+        for (int i = 0; i < 10 * capacity; i++) {
+            PageId scanned = pid(i);
+            p.pageAdded(scanned);
+            cached.add(scanned);
+            if (cached.size() > capacity)
+                assertTrue(cached.remove(p.chooseVictim(ANY)));
+            p.pageAccessed(hot0);
+            p.pageAccessed(hot1);
+        }
+        assertTrue(cached.contains(hot0));
+        assertTrue(cached.contains(hot1));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy in a striped BufferPool: a scan
+     * larger than the pool does not evict the pages that are re-used while
+     * it runs, e.g. the internal pages of an index. The queues are sized
+     * from the whole pool, so this holds with many more stripes than hot
+     * pages.
+     */
+    @Test public void twoQueueScanResistanceInPool() throws Exception {
+        int poolPages = 50, hotPages = 10, filePages = 8 * poolPages;
+        // 10 tuples of 100 ints fit on a page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(100, 10 * filePages, null, null);
+        assertEquals(filePages, hf.numPages());
+        BufferPool bp = Database.resetBufferPool(poolPages, BufferPool.DEFAULT_STRIPES,
+                EvictionPolicy.Type.TWO_QUEUE);
+        TransactionId tid = new TransactionId();
+
+        // the hot pages are read again every few pages of the scan; once they
+        // were pushed out of A1in and read again they are kept in Am
+        int misses = 0;
+        for (int i = hotPages; i < filePages; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            if (i % 5 != 0)
+                continue;
+            for (int h = 0; h < hotPages; h++) {
+                PageId hot = new HeapPageId(hf.getId(), h);
+                if (i >= filePages / 2 && bp.peekPage(hot) == null)
+                    misses++;
+                bp.getPage(tid, hot, Permissions.READ_ONLY);
+            }
+        }
+        assertEquals(0, misses);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FileHandleCacheTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("handles", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Unit test for FileHandleCache.write() and readFully()
+     */
+    @Test public void readWrite() throws Exception {
+        FileHandleCache cache = new FileHandleCache(2);
+        File f = tempFile();
+        byte[] data = new byte[] {1, 2, 3, 4};
+        cache.write(f, data, 8);
+        assertEquals(12, f.length());
+
+        byte[] read = new byte[4];
+        cache.readFully(f, read, 8);
+        assertArrayEquals(data, read);
+
+        try {
+            cache.readFully(f, new byte[8], 8);
+            fail("expected exception");
+        } catch (EOFException e) {
+        }
+    }
+
+    /**
+     * Unit test for FileHandleCache: no more than maxOpenFiles channels are open
+     */
+    @Test public void bounded() throws Exception {
+        FileHandleCache cache = new FileHandleCache(2);
+        File[] files = new File[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = tempFile();
+            cache.write(files[i], new byte[] {(byte) i}, 0);
+            assertEquals(Math.min(i + 1, 2), cache.numOpenFiles());
+        }
+        // evicted files are reopened transparently
+        for (int i = 0; i < files.length; i++) {
+            byte[] read = new byte[1];
+            cache.readFully(files[i], read, 0);
+            assertEquals(i, read[0]);
+        }
+        cache.closeAll();
+        assertEquals(0, cache.numOpenFiles());
+    }
+
+    /**
+     * Unit test for FileHandleCache.invalidate(): a replaced file is reopened
+     */
+    @Test public void invalidate() throws Exception {
+        FileHandleCache cache = new FileHandleCache(4);
+        File f = tempFile();
+        cache.write(f, new byte[] {1}, 0);
+        assertEquals(1, cache.numOpenFiles());
+
+        f.delete();
+        cache.invalidate(f);
+        assertEquals(0, cache.numOpenFiles());
+        try {
+            cache.readFully(f, new byte[1], 0);
+            fail("expected exception");
+        } catch (FileNotFoundException e) {
+        }
+        cache.write(f, new byte[] {2}, 0);
+        byte[] read = new byte[1];
+        cache.readFully(f, read, 0);
+        assertEquals(2, read[0]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleCacheTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+    private GroupCommit gc;
+
+    @Before public void setUp() throws IOException {
+        f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+        gc = log.getGroupCommit();
+    }
+
+    @After public void tearDown() {
+        log.shutdown();
+        LogSegments.delete(f);
+        f.delete();
+    }
+
+    private Thread committer(final List<Exception> errors) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    log.logCommit(new TransactionId());
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * A commit returns once its record is forced, without waiting for other
+     * commits when there is no delay.
+     */
+    @Test public void singleCommit() throws Exception {
+        assertEquals(GroupCommit.DEFAULT_MAX_DELAY_MICROS, gc.getMaxDelayMicros());
+        log.logCommit(new TransactionId());
+        assertEquals(1, gc.getForces());
+        assertEquals(1, gc.getCommits());
+        assertEquals(1.0, gc.getCommitsPerForce(), 0.0);
+        assertEquals(1, log.getTotalRecords());
+    }
+
+    /**
+     * Commits waiting within the delay share one force, which happens as soon
+     * as the batch is full.
+     */
+    @Test public void commitsShareForce() throws Exception {
+        gc.setMaxBatchSize(4);
+        gc.setMaxDelayMicros(60 * 1000 * 1000L);
+        List<Exception> errors = new ArrayList<Exception>();
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++)
+            threads.add(committer(errors));
+        for (Thread t : threads)
+            t.join();
+        assertTrue(errors.isEmpty());
+        // the full batch didn't wait for the delay
+        assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+        assertEquals(1, gc.getForces());
+        assertEquals(4, gc.getCommits());
+        assertEquals(4.0, gc.getCommitsPerForce(), 0.0);
+
+        gc.resetCounters();
+        assertEquals(0, gc.getForces());
+        assertEquals(0, gc.getCommits());
+        assertEquals(0.0, gc.getCommitsPerForce(), 0.0);
+    }
+
+    /** A batch is forced after the delay even if it isn't full. */
+    @Test public void delayEndsBatch() throws Exception {
+        gc.setMaxBatchSize(100);
+        gc.setMaxDelayMicros(1000);
+        List<Exception> errors = new ArrayList<Exception>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++)
+            threads.add(committer(errors));
+        for (Thread t : threads)
+            t.join();
+        assertTrue(errors.isEmpty());
+        assertEquals(3, gc.getCommits());
+        assertTrue(gc.getForces() >= 1 && gc.getForces() <= 3);
+    }
+
+    @Test public void invalidSettings() {
+        try {
+            gc.setMaxBatchSize(0);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            gc.setMaxDelayMicros(-1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(GroupCommit.DEFAULT_MAX_BATCH_SIZE, gc.getMaxBatchSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("encoder", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() with several parser threads:
+     * the input spans several blocks and the output doesn't depend on the
+     * number of threads
+     */
+    @Test public void parallelConvert() throws Exception {
+        File in = tempFile(".txt");
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        for (int i = 0; i < 600000; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(-i);
+            tuples.add(tuple);
+            bw.write(i + ", " + (-i) + (i % 1000 == 0 ? "\r\n\n" : "\n"));
+        }
+        bw.close();
+        Type[] types = new Type[] {Type.INT_TYPE, Type.INT_TYPE};
+
+        File serial = tempFile(".dat");
+        File parallel = tempFile(".dat");
+        HeapFileEncoder.convert(in, serial, BufferPool.getPageSize(), 2, types, ',', 1);
+        HeapFileEncoder.convert(in, parallel, BufferPool.getPageSize(), 2, types, ',', 4);
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+
+        HeapFile hf = Utility.openHeapFile(2, parallel);
+        assertEquals((600000 + 503) / 504, hf.numPages());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() with string fields and a
+     * last line without a line break
+     */
+    @Test public void stringFields() throws Exception {
+        File in = tempFile(".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        bw.write("1| one\n2|two ");
+        bw.close();
+        File out = tempFile(".dat");
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2,
+                new Type[] {Type.INT_TYPE, Type.STRING_TYPE}, '|', 2);
+
+        TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE});
+        HeapFile hf = new HeapFile(out, td);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        assertEquals("1 one", it.next().toString());
+        assertEquals("2 two", it.next().toString());
+        assertEquals(false, it.hasNext());
+        it.close();
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() with a malformed line
+     */
+    @Test public void badLine() throws Exception {
+        File in = tempFile(".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        bw.write("1,2\n3,x\n");
+        bw.close();
+        try {
+            HeapFileEncoder.convert(in, tempFile(".dat"), BufferPool.getPageSize(), 2);
+            fail("expected exception");
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
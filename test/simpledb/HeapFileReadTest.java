@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -121,6 +122,68 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator(TransactionId, BufferRing): the scanned
+     * pages are read into the ring and don't end up in the buffer pool
+     */
+    @Test
+    public void testIteratorBufferRing() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        BufferRing ring = new BufferRing(2);
+
+        DbFileIterator it = bigFile.iterator(tid, ring);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count += 1;
+        }
+        it.close();
+        assertEquals(504 * 8, count);
+
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < bigFile.numPages(); i++)
+            assertNull(bp.getPage(new HeapPageId(bigFile.getId(), i)));
+        assertNotNull(ring.getPage(new HeapPageId(bigFile.getId(), bigFile.numPages() - 1)));
+
+        // rewinding reads the file again through the ring
+        it.open();
+        count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        it.close();
+        assertEquals(504 * 8, count);
+    }
+
+    /**
+     * Unit test for a memory-mapped HeapFile: pages read from the mapping
+     * match the file, including pages appended after the file was mapped
+     */
+    @Test
+    public void memoryMapped() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 3, 1000, null, tuples);
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMemoryMapped());
+        SystemTestUtil.matchTuples(mapped, tuples);
+
+        // grow the file past the end of the mapping
+        HeapPageId newPid = new HeapPageId(mapped.getId(), mapped.numPages());
+        HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
+        Tuple t = Utility.getHeapTuple(new int[] {7, 8});
+        newPage.insertTuple(t);
+        mapped.writePage(newPage);
+
+        HeapPage read = (HeapPage) mapped.readPage(newPid);
+        assertEquals(newPage.getNumEmptySlots(), read.getNumEmptySlots());
+        Tuple readTuple = read.iterator().next();
+        assertEquals(new IntField(7), readTuple.getField(0));
+        assertEquals(new IntField(8), readTuple.getField(1));
+    }
+
     /**
      * JUnit suite target
      */
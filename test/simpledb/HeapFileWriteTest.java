@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,84 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the FreeSpaceMap of a HeapFile
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(0, fsm.getEmptySlots(0));
+        assertEquals(503, fsm.getEmptySlots(1));
+
+        // a deleted slot is found again
+        empty.deleteTuple(tid, first);
+        assertEquals(1, fsm.getEmptySlots(0));
+        Tuple refill = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, refill);
+        assertEquals(0, refill.getRecordId().getPageId().getPageNumber());
+        assertEquals(0, fsm.getEmptySlots(0));
+
+        // the map written with the pages is loaded by a new HeapFile
+        Database.getBufferPool().flushAllPages();
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(0, reopened.getFreeSpaceMap().getEmptySlots(0));
+        assertEquals(503, reopened.getFreeSpaceMap().getEmptySlots(1));
+    }
+
+    /**
+     * Unit test for the FreeSpaceMap of a HeapFile: a slot an insert
+     * couldn't use while its delete was uncommitted is found again once
+     * the delete commits.
+     */
+    @Test public void freeSpaceAfterCommit() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId loader = new TransactionId();
+        Tuple first = Utility.getHeapTuple(0, 2);
+        bp.insertTuple(loader, empty.getId(), first);
+        for (int i = 1; i < 504; ++i)
+            bp.insertTuple(loader, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(loader);
+
+        // the slot t1 frees is reserved until t1 commits, so t2 appends a page
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, first);
+        bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(-1, 2));
+        assertEquals(2, empty.numPages());
+        bp.transactionComplete(t1);
+        assertEquals(1, empty.getFreeSpaceMap().getEmptySlots(0));
+
+        // a page's worth of tuples fits in the freed slot and the new page
+        TransactionId t3 = new TransactionId();
+        for (int i = 0; i < 504; ++i)
+            bp.insertTuple(t3, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(t2);
+        bp.transactionComplete(t3);
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuples()
+     */
+    @Test public void insertTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 3 + 10; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        ArrayList<Page> pages = empty.insertTuples(tid, tuples.iterator());
+
+        // the existing page is filled, then three pages are appended at once
+        assertEquals(4, pages.size());
+        assertEquals(4, empty.numPages());
+        for (Page p : pages)
+            assertEquals(tid, p.isDirty());
+        for (int i = 0; i < tuples.size(); ++i)
+            assertEquals(i / 504, tuples.get(i).getRecordId().getPageId().getPageNumber());
+        assertEquals(504 - 10, empty.getFreeSpaceMap().getEmptySlots(3));
+    }
+
     /**
      * JUnit suite target
      */
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,50 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() after insertions and deletions
+     */
+    @Test public void pageDataRoundTrip() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple addition = Utility.getHeapTuple(new int[] {42, 43});
+        page.insertTuple(addition);
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> it = page.iterator();
+        Iterator<Tuple> copyIt = copy.iterator();
+        boolean found = false;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertTrue(TestUtil.compareTuples(tup, copyIt.next()));
+            assertTrue(!TestUtil.compareTuples(first, tup));
+            found |= TestUtil.compareTuples(addition, tup);
+        }
+        assertTrue(!copyIt.hasNext());
+        assertTrue(found);
+    }
+
+    /**
+     * Before images share the bytes of the page's before image, which
+     * neither the page nor the before image changes in place.
+     */
+    @Test public void beforeImageIsolated() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(new int[] {42, 43}));
+        HeapPage before = page.getBeforeImage();
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, before.getPageData()));
+
+        before.deleteTuple(before.iterator().next());
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, before.getBeforeImage().getPageData()));
+
+        page.setBeforeImage();
+        page.deleteTuple(page.iterator().next());
+        assertTrue(!Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
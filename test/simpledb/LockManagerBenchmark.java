@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded throughput benchmark for the lock table (LTM). Every
+ * thread runs transactions that lock a few pages of its own table, some
+ * shared and some exclusive, and then release them, so that no two threads
+ * ever wait for each other and any slowdown comes from the lock table
+ * itself. The run is repeated for 1, 2, 4, ... up to the given number of
+ * threads.
+ * <p>
+ * Not a unit test; run it by hand:
+ * <pre>
+ *     java -cp ... simpledb.LockManagerBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class LockManagerBenchmark {
+    private static final int PAGES_PER_TABLE = 64;
+    private static final int PAGES_PER_TRANSACTION = 4;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println("pages per transaction: " + PAGES_PER_TRANSACTION
+                + ", processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            LTM ltm = new LTM();
+            run(ltm, threads, 1); // warm up
+            long locks = run(ltm, threads, seconds);
+            System.out.printf("threads %2d: %12.0f locks/s%n", threads, locks / (double) seconds);
+        }
+    }
+
+    private static long run(final LTM ltm, int threads, int seconds) throws InterruptedException {
+        final AtomicLong locksTaken = new AtomicLong(0);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < workers.length; i++) {
+            final int tableId = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    PageId[] pids = new PageId[PAGES_PER_TRANSACTION];
+                    long n = 0;
+                    int next = 0;
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            TransactionId tid = new TransactionId();
+                            for (int j = 0; j < PAGES_PER_TRANSACTION; j++) {
+                                pids[j] = new HeapPageId(tableId, next++ % PAGES_PER_TABLE);
+                                ltm.getLock(tid, pids[j], (j % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE));
+                                n++;
+                            }
+                            for (int j = 0; j < PAGES_PER_TRANSACTION; j++) {
+                                if (!ltm.holdsLock(tid, pids[j]))
+                                    throw new IllegalStateException("lost the lock on " + pids[j]);
+                            }
+                            ltm.returnAllLocks(tid, Arrays.asList(pids));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    locksTaken.addAndGet(n);
+                }
+            };
+        }
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        return locksTaken.get();
+    }
+}
@@ -1,9 +1,15 @@
 package simpledb;
 
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +192,190 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for lock escalation.
+   * Read locks on two pages are escalated to a shared lock on the table,
+   * which covers the third page and lets other transactions read but not
+   * write it.
+   */
+  @Test public void readLockEscalation() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(new TransactionId(), p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for lock escalation.
+   * Write locks on two pages are escalated to an exclusive lock on the
+   * table, which keeps other transactions off the third page.
+   */
+  @Test public void writeLockEscalation() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE);
+    bp.getPage(tid1, p2, Permissions.READ_WRITE);
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for lock escalation.
+   * Escalation is skipped while another transaction holds a conflicting
+   * intention lock on the table.
+   */
+  @Test public void escalationSkippedOnConflict() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+
+    grabLock(new TransactionId(), p0, Permissions.READ_ONLY, true);
+    grabLock(new TransactionId(), p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for tuple locking.
+   * Two transactions deleting different tuples of a page don't wait for
+   * each other, but a third one can't read the page, and the tuple deleted
+   * by one is locked against the other. Each transaction is then
+   * committed or rolled back without touching the other's change.
+   */
+  @Test public void deleteTuplesOnSamePage() throws Exception {
+    TransactionId reader = new TransactionId();
+    Iterator<Tuple> it = ((HeapPage) bp.getPage(reader, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t0 = it.next();
+    Tuple t1 = it.next();
+    bp.transactionComplete(reader);
+
+    bp.deleteTuple(tid1, t0);
+    bp.deleteTuple(tid2, t1);
+    grabLock(new TransactionId(), p0, Permissions.READ_ONLY, false);
+    grabTupleLock(tid2, t0.getRecordId(), false);
+
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    int slot0 = t0.getRecordId().getTupleNumber();
+    int slot1 = t1.getRecordId().getTupleNumber();
+    HeapPage cached = (HeapPage) bp.getPage(new TransactionId(), p0, Permissions.READ_ONLY);
+    assertTrue(cached.isSlotUsed(slot0));
+    assertFalse(cached.isSlotUsed(slot1));
+    assertNull(cached.isDirty());
+    HeapPage onDisk = (HeapPage) empty.readPage(p0);
+    assertTrue(onDisk.isSlotUsed(slot0));
+    assertFalse(onDisk.isSlotUsed(slot1));
+  }
+
+  /**
+   * Unit test for tuple locking.
+   * Two transactions insert into the same page at the same time; only the
+   * tuple of the one that commits is written to disk.
+   */
+  @Test public void insertTuplesOnSamePage() throws Exception {
+    Tuple t1 = Utility.getHeapTuple(-1, 2);
+    Tuple t2 = Utility.getHeapTuple(-2, 2);
+    bp.insertTuple(tid1, empty.getId(), t1);
+    bp.insertTuple(tid2, empty.getId(), t2);
+    assertEquals(p2, t1.getRecordId().getPageId());
+    assertEquals(p2, t2.getRecordId().getPageId());
+
+    bp.transactionComplete(tid2, false);
+    bp.transactionComplete(tid1, true);
+
+    HeapPage cached = (HeapPage) bp.getPage(new TransactionId(), p2, Permissions.READ_ONLY);
+    HeapPage onDisk = (HeapPage) empty.readPage(p2);
+    for (HeapPage hp : new HeapPage[] {cached, onDisk}) {
+      assertTrue(hp.isSlotUsed(t1.getRecordId().getTupleNumber()));
+      assertFalse(hp.isSlotUsed(t2.getRecordId().getTupleNumber()));
+      assertEquals(onDisk.getNumEmptySlots(), hp.getNumEmptySlots());
+    }
+  }
+
+  /**
+   * Unit test for appending pages.
+   * A transaction that has to append a page while another one holds the
+   * table lock waits for the table before it extends the file. The page
+   * the other transaction appends and inserts into meanwhile is not
+   * replaced by an empty one, and both inserts survive.
+   */
+  @Test public void appendWhileTableLocked() throws Exception {
+    File f = File.createTempFile("append", ".dat");
+    f.deleteOnExit();
+    FreeSpaceMap.sideFile(f).deleteOnExit();
+    final HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+    TransactionId loader = new TransactionId();
+    for (int i = 0; i < 504; ++i)
+      bp.insertTuple(loader, hf.getId(), Utility.getHeapTuple(i, 2));
+    bp.transactionComplete(loader);
+    assertEquals(1, hf.numPages());
+
+    // tid1 reads the full page, and its lock is escalated to the table
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid1, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+
+    // tid2 finds no room and has to append a page, which waits for tid1
+    final Exception[] error = new Exception[1];
+    Thread appender = new Thread() {
+      public void run() {
+        try {
+          bp.insertTuple(tid2, hf.getId(), Utility.getHeapTuple(-2, 2));
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    };
+    appender.start();
+    while (appender.getState() != Thread.State.WAITING && appender.isAlive())
+      Thread.sleep(10);
+
+    bp.insertTuple(tid1, hf.getId(), Utility.getHeapTuple(-1, 2));
+    bp.transactionComplete(tid1);
+    appender.join();
+    assertNull(error[0]);
+    bp.transactionComplete(tid2);
+
+    TransactionId reader = new TransactionId();
+    DbFileIterator it = hf.iterator(reader);
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    it.close();
+    bp.transactionComplete(reader);
+    assertEquals(506, count);
+  }
+
+  /**
+   * Try to lock a tuple in a new thread.
+   *
+   * @param expected true if we expect the acquisition to succeed;
+   *   false otherwise
+   */
+  private void grabTupleLock(final TransactionId tid, final RecordId rid,
+      boolean expected) throws Exception {
+    final AtomicBoolean acquired = new AtomicBoolean(false);
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          bp.lockTuple(tid, rid);
+          acquired.set(true);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(expected, acquired.get());
+    t.stop();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,264 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+    private HeapPage page;
+
+    @Before public void setUp() throws IOException {
+        f = File.createTempFile("logfile", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        page = new HeapPage(new HeapPageId(-1, 0), HeapPageReadTest.EXAMPLE_DATA);
+    }
+
+    @After public void tearDown() {
+        log.shutdown();
+        LogSegments.delete(f);
+        f.delete();
+    }
+
+    // the checkpoint and first LSNs in the log file
+    private long[] readHeader() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            return new long[] { raf.readLong(), raf.readLong() };
+        } finally {
+            raf.close();
+        }
+    }
+
+    // check the BEGIN and UPDATE records of tid starting at lsn, and
+    // return the LSN after them
+    private long checkRecords(LogSegments in, long lsn, TransactionId tid) throws IOException {
+        in.seek(lsn);
+        assertEquals(LogFile.BEGIN_RECORD, in.readInt());
+        assertEquals(tid.getId(), in.readLong());
+        assertEquals(lsn, in.readLong());
+
+        long update = in.getFilePointer();
+        assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+        assertEquals(tid.getId(), in.readLong());
+        Page before = log.readPageData(in);
+        Page after = log.readPageData(in);
+        assertEquals(page.getId(), before.getId());
+        assertEquals(page.getId(), after.getId());
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, before.getPageData()));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, after.getPageData()));
+        assertEquals(update, in.readLong());
+        return in.getFilePointer();
+    }
+
+    /** Records written from the record buffer read back field by field. */
+    @Test public void recordsReadBack() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page, page);
+        log.logCommit(tid);
+        assertEquals(3, log.getTotalRecords());
+
+        long[] header = readHeader();
+        assertEquals(LogFile.NO_CHECKPOINT_ID, header[0]);
+        assertEquals(log.firstLSN, header[1]);
+        LogSegments in = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+        try {
+            long commit = checkRecords(in, header[1], tid);
+            assertEquals(LogFile.COMMIT_RECORD, in.readInt());
+            assertEquals(tid.getId(), in.readLong());
+            assertEquals(commit, in.readLong());
+            assertEquals(log.currentOffset, in.getFilePointer());
+            // the rest of the segment is zeros
+            assertEquals(0, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Truncating at a checkpoint deletes the segments before the first
+     * record of the live transactions, which may span segments, and the
+     * checkpoint lists the page whose update isn't on disk.
+     */
+    @Test public void truncateDeletesSegments() throws Exception {
+        log.shutdown();
+        int size = BufferPool.getPageSize();
+        log = new LogFile(f, size);
+        HeapPage other = new HeapPage(new HeapPageId(-1, 1), HeapPageReadTest.EXAMPLE_DATA);
+        TransactionId done = new TransactionId();
+        log.logXactionBegin(done);
+        log.logWrite(done, other, other);
+        log.logCommit(done);
+        log.pageWritten(other);
+        long start = log.firstLSN;
+        TransactionId tid = new TransactionId();
+        long first = log.currentOffset;
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page, page);
+        log.logCheckpoint();
+
+        long[] header = readHeader();
+        assertEquals(first, header[1]);
+        assertEquals(first, log.firstLSN);
+        LogSegments in = new LogSegments(f, size);
+        try {
+            assertTrue(in.numSegments() >= 3);
+            in.seek(start);
+            try {
+                in.readInt();
+                fail("expected the first segment to be deleted");
+            } catch (EOFException e) {
+            }
+
+            long checkpoint = header[0];
+            assertEquals(checkpoint, checkRecords(in, first, tid));
+            assertEquals(LogFile.CHECKPOINT_RECORD, in.readInt());
+            assertEquals(-1, in.readLong());
+            assertEquals(1, in.readInt());
+            assertEquals(tid.getId(), in.readLong());
+            assertEquals(first, in.readLong());
+            assertEquals(1, in.readInt());
+            assertEquals(page.getId(), LogFile.readPageId(in));
+            assertEquals(page.getLSN(), in.readLong());
+            assertEquals(checkpoint, in.readLong());
+            assertEquals(log.currentOffset, in.getFilePointer());
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Pages leave the dirty page table once written with their last update. */
+    @Test public void dirtyPageTable() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page, page);
+        HeapPage written = page.getBeforeImage();
+        written.setLSN(page.getLSN());
+        log.logWrite(tid, page, page);
+        // writing an older version leaves the page in the table
+        log.pageWritten(written);
+        log.logCheckpoint();
+
+        assertEquals(1, checkpointPages());
+
+        log.pageWritten(page);
+        log.logCheckpoint();
+        assertEquals(0, checkpointPages());
+    }
+
+    // the number of pages in the dirty page table of the last checkpoint
+    private int checkpointPages() throws IOException {
+        LogSegments in = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+        try {
+            in.seek(readHeader()[0] + LogFile.INT_SIZE + LogFile.LONG_SIZE);
+            in.skipBytes(in.readInt() * 2 * LogFile.LONG_SIZE);
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Updates of a page after its first one since a checkpoint log only
+     * the changed bytes, which redo and undo the update.
+     */
+    @Test public void deltaAfterFullImage() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page, page);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 42, 43 }));
+        long delta = log.currentOffset;
+        log.logWrite(tid, before, page);
+
+        LogSegments in = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+        try {
+            assertEquals(delta, checkRecords(in, log.firstLSN, tid));
+            assertEquals(LogFile.DELTA_RECORD, in.readInt());
+            assertEquals(tid.getId(), in.readLong());
+            PageDelta d = log.readPageDelta(in);
+            assertEquals(delta, in.readLong());
+            assertEquals(log.currentOffset, in.getFilePointer());
+            // header bit and slot
+            assertEquals(2, d.numRanges());
+            assertTrue(log.currentOffset - delta < BufferPool.getPageSize() / 10);
+
+            assertEquals(page.getId(), d.getPageId());
+            assertTrue(Arrays.equals(page.getPageData(), d.redo(before).getPageData()));
+            assertTrue(Arrays.equals(before.getPageData(), d.undo(page).getPageData()));
+        } finally {
+            in.close();
+        }
+
+        // the page may be written any time after the checkpoint, so its
+        // next update is logged in full
+        log.logCheckpoint();
+        long update = log.currentOffset;
+        log.logWrite(tid, before, page);
+        in = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+        try {
+            in.seek(update);
+            assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * logWrite stamps the page with the LSN of its record, which keeps
+     * growing when a checkpoint truncates the log.
+     */
+    @Test public void pageLsn() throws Exception {
+        assertEquals(0, page.getLSN());
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long update = log.currentOffset;
+        log.logWrite(tid, page, page);
+        long lsn = page.getLSN();
+        assertEquals(update, lsn);
+
+        log.logCommit(tid);
+        log.pageWritten(page);
+        log.logCheckpoint();
+        tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page, page);
+        assertTrue(log.firstLSN > lsn);
+        assertTrue(page.getLSN() > lsn);
+        assertTrue(page.getLSN() < log.currentOffset);
+    }
+
+    /** Deltas merge changed bytes that are close together. */
+    @Test public void deltaRanges() throws Exception {
+        HeapPage before = page.getBeforeImage();
+        assertEquals(0, PageDelta.diff(before, page).numRanges());
+        page.deleteTuple(page.iterator().next());
+        PageDelta d = PageDelta.diff(before, page);
+        assertEquals(2, d.numRanges());
+        assertTrue(Arrays.equals(before.getPageData(), d.undo(page).getPageData()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PagePrefetcherTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+    private PagePrefetcher prefetcher;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        prefetcher = bp.getPrefetcher();
+    }
+
+    private void waitForPage(PageId pid) throws InterruptedException {
+        for (int i = 0; i < 500 && bp.getPage(pid) == null; i++)
+            Thread.sleep(10);
+    }
+
+    /**
+     * Unit test for PagePrefetcher: read-ahead is off by default
+     */
+    @Test public void disabledByDefault() throws Exception {
+        assertEquals(0, prefetcher.getDepth());
+        PageId pid = new HeapPageId(hf.getId(), 1);
+        prefetcher.prefetch(pid);
+        Thread.sleep(100);
+        assertNull(bp.getPage(pid));
+        assertEquals(0, prefetcher.getIssued());
+    }
+
+    /**
+     * Unit test for PagePrefetcher: a prefetched page that is requested is a hit
+     */
+    @Test public void hit() throws Exception {
+        prefetcher.setDepth(4);
+        PageId pid = new HeapPageId(hf.getId(), 2);
+        prefetcher.prefetch(pid);
+        waitForPage(pid);
+        assertNotNull(bp.getPage(pid));
+        assertEquals(1, prefetcher.getIssued());
+
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(1, prefetcher.getHits());
+        assertEquals(0, prefetcher.getWasted());
+    }
+
+    /**
+     * Unit test for PagePrefetcher: a prefetched page dropped before use is waste
+     */
+    @Test public void waste() throws Exception {
+        prefetcher.setDepth(4);
+        PageId pid = new HeapPageId(hf.getId(), 3);
+        prefetcher.prefetch(pid);
+        waitForPage(pid);
+        bp.discardPage(pid);
+        assertEquals(1, prefetcher.getIssued());
+        assertEquals(0, prefetcher.getHits());
+        assertEquals(1, prefetcher.getWasted());
+    }
+
+    /**
+     * Unit test for HeapFileIterator read-ahead: the whole file ends up
+     * cached, and each page was read by either the scan or the prefetcher
+     */
+    @Test public void sequentialScan() throws Exception {
+        prefetcher.setDepth(2);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(504 * 4, count);
+        for (int i = 0; i < hf.numPages(); i++)
+            waitForPage(new HeapPageId(hf.getId(), i));
+        for (int i = 0; i < hf.numPages(); i++)
+            assertNotNull(bp.getPage(new HeapPageId(hf.getId(), i)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagePrefetcherTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // clear all state from the buffer pool
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile and populate it with three pages.
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+
+    bp.transactionComplete(tid);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  private boolean isSlotUsed(TransactionId tid, Tuple t) throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
+    return p.isSlotUsed(t.getRecordId().getTupleNumber());
+  }
+
+  /**
+   * A snapshot transaction reads without locks, so a writer gets the page
+   * it is reading right away.
+   */
+  @Test public void writerDoesNotWaitForSnapshot() throws Exception {
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(reader, p0));
+
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertTrue(t.acquired());
+    assertNull(t.getError());
+    t.stop();
+  }
+
+  /**
+   * A snapshot sees the tuples committed before it started, and neither
+   * the changes committed after that nor uncommitted ones. The images kept
+   * for it are dropped once it completes.
+   */
+  @Test public void snapshotSeesCommittedState() throws Exception {
+    TransactionId before = new TransactionId();
+    bp.beginSnapshot(before);
+    Iterator<Tuple> it = ((HeapPage) bp.getPage(before, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t0 = it.next();
+    Tuple t1 = it.next();
+
+    bp.deleteTuple(tid1, t0);
+    assertTrue(isSlotUsed(before, t0));
+    bp.transactionComplete(tid1, true);
+    assertTrue(isSlotUsed(before, t0));
+
+    bp.deleteTuple(tid2, t1);
+    TransactionId after = new TransactionId();
+    bp.beginSnapshot(after);
+    assertFalse(isSlotUsed(after, t0));
+    assertTrue(isSlotUsed(after, t1));
+    assertTrue(isSlotUsed(before, t1));
+
+    bp.transactionComplete(tid2, true);
+    assertTrue(isSlotUsed(after, t1));
+    assertTrue(bp.getVersionStore().numVersions() > 0);
+
+    bp.transactionComplete(before);
+    bp.transactionComplete(after);
+    assertEquals(0, bp.getVersionStore().numVersions());
+  }
+
+  /**
+   * A snapshot transaction can't write.
+   */
+  @Test(expected = DbException.class) public void snapshotIsReadOnly() throws Exception {
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotTest.class);
+  }
+
+}
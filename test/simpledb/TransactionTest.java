@@ -4,6 +4,9 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +115,35 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for strict two-phase locking.
+   * A scan keeps its read locks after it is closed, so a writer can't change
+   * the value the scan read and commit before the reader writes its own
+   * update based on it.
+   */
+  @Test public void scanKeepsReadLocks() throws Exception {
+    DbFileIterator it = empty.iterator(tid1);
+    it.open();
+    while (it.hasNext())
+      it.next();
+    it.close();
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p1));
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.TUPLE_WRITE);
+    writer.start();
+    while (writer.getState() != Thread.State.WAITING && writer.isAlive())
+      Thread.sleep(10);
+    assertFalse(writer.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join();
+    assertTrue(writer.acquired());
+    assertNull(writer.getError());
+    bp.transactionComplete(tid2);
+  }
+
   /**
    * JUnit suite target
    */
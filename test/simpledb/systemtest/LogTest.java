@@ -190,6 +190,33 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestCommitCrashBeforeWrite()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts into two tables, logs its pages and its COMMIT
+        // record, and crashes before the pages are written
+        // T1 data should be there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        insertRow(hf2, t1, 30, 0);
+        Database.getBufferPool().flushPages(t1.getId());
+        Database.getLogFile().logCommit(t1.getId());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        look(hf2, t, 30, true);
+        t.commit();
+    }
+
     @Test public void TestAbort()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -427,6 +454,47 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestParallelRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        // *** Test:
+        // T1 inserts into both tables but does not commit
+        // crash, recover on several threads
+        // the committed data is there, T1's is not
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30, 0);
+        insertRow(hf2, t1, 31, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryThreads(4);
+        Database.getLogFile().recover();
+
+        RecoveryStats stats = Database.getLogFile().getRecoveryStats();
+        assertEquals(4, stats.getThreads());
+        assertEquals(1, stats.getLosers());
+        assertEquals(2, stats.getPagesUndone());
+        assertTrue(stats.getChangesRead() >= 6);
+        assertTrue(stats.getAnalysisMillis() >= 0 && stats.getRedoMillis() >= 0 && stats.getUndoMillis() >= 0);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        look(hf1, t, 30, false);
+        look(hf2, t, 31, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);